@@ -2,58 +2,417 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.ZipException;
 
 public class AggregationServer {
 
     public static LamportClock lamportClock;
     public static final int TIME_LIMIT = 3000;
+    // How long a kept-alive connection may sit without a new request before it is closed
+    public static final int IDLE_TIMEOUT = 30000;
     private static final int PORT_NUMBER = 4040;
+    private static final String DATA_DIRECTORY = "aggregation-data";
+    private static final int MAX_HEADER_LINE = 8192;
+    // Request line and headers together
+    public static final int MAX_HEADER_SIZE = 64 * 1024;
+    // Records applied per batch while a PUT body is streamed
+    private static final int STREAM_BATCH_SIZE = 1000;
+    // Largest PUT body accepted, in bytes
+    public static long maxBodySize = 64L * 1024 * 1024;
     public static Map<String, Long> contentServerValue;
-    public static JSONArray weatherData;
+    public static StationStore weatherData;
+    public static ExpiryScheduler expiryScheduler;
+    // Null when persistence is disabled
+    public static WriteAheadLog writeAheadLog;
+    // Recent changes served to GET /?since=<lamport>
+    public static ChangeLog changeLog;
+    private static final int CHANGE_LOG_CAPACITY = 65536;
+    // Connections streaming updates as server-sent events; null when nobody can subscribe
+    public static SubscriptionHub subscriptionHub;
+    // Recent readings per station served by GET /{id}/history; null unless started with -Dhistory=on
+    public static StationHistory stationHistory;
+    // Sharded deployments only, see ShardRouter
+    public static ShardRouter shardRouter;
+    // Replicated deployments only, see PaxosLog
+    public static PaxosLog replicatedLog;
+    // Always on, served by GET /metrics
+    public static final Metrics metrics = new Metrics();
+    // Sampled per-request log lines, printed off the request path; null disables it
+    public static AsyncLogger requestLog;
+    private static final int REQUEST_LOG_CAPACITY = 8192;
+    // Status of the response the current thread wrote last, for the request metrics
+    private static final ThreadLocal<int[]> responseStatus = ThreadLocal.withInitial(() -> new int[1]);
+    // Writers share the read side; taking the write side waits for in-flight PUTs to finish
+    public static final ReentrantReadWriteLock commitLock = new ReentrantReadWriteLock();
+    private static final Lock[] WRITE_STRIPES = new Lock[64];
+    // Cached GET / response, rebuilt at most once per change of the store
+    private static volatile WeatherSnapshot snapshot;
+    // Number of changes to the store so far, a snapshot is current while it matches
+    private static final AtomicLong changeCount = new AtomicLong();
+
+    static {
+        for (int i = 0; i < WRITE_STRIPES.length; i++) {
+            WRITE_STRIPES[i] = new ReentrantLock();
+        }
+        metrics.gauge("weather_stations", "Stations currently held", () -> weatherData == null ? 0 : weatherData.size());
+        metrics.gauge("weather_content_servers", "Content servers currently alive",
+                () -> contentServerValue == null ? 0 : contentServerValue.size());
+        metrics.gauge("weather_lamport_clock", "Current Lamport clock of the server", () -> lamportClock == null ? 0 : lamportClock.getTime());
+        metrics.counter("weather_request_log_dropped_total", "Sampled log lines dropped because the printer fell behind",
+                () -> requestLog == null ? 0 : requestLog.getDropped());
+        // Write path cost of persistence; the average group size and fsync time are ratios of these
+        metrics.counter("weather_wal_syncs_total", "Write-ahead log fsyncs", () -> writeAheadLog == null ? 0 : writeAheadLog.getSyncCount());
+        metrics.counter("weather_wal_synced_entries_total", "PUTs made durable by those fsyncs",
+                () -> writeAheadLog == null ? 0 : writeAheadLog.getSyncedEntries());
+        metrics.secondsCounter("weather_wal_sync_seconds_total", "Time spent writing and fsyncing the write-ahead log",
+                () -> writeAheadLog == null ? 0 : writeAheadLog.getSyncNanos());
+        metrics.gauge("weather_wal_recovered_entries", "Entries replayed from the snapshot and log at startup",
+                () -> writeAheadLog == null ? 0 : writeAheadLog.getRecoveredEntries());
+        metrics.gauge("weather_wal_recovery_milliseconds", "Time the startup recovery took",
+                () -> writeAheadLog == null ? 0 : writeAheadLog.getRecoveryMillis());
+    }
 
     public static void main(String[] args) throws IOException {
         int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT_NUMBER;
-        contentServerValue = new HashMap<>();
-        weatherData = new JSONArray();
-        lamportClock = new LamportClock();
-        ServerSocket serverSocket = new ServerSocket(port);
+        String mode = args.length > 1 ? args[1] : "threaded";
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        String dataDirectory = args.length > 3 ? args[3] : DATA_DIRECTORY;
+        if (args.length > 4) {
+            maxBodySize = Long.parseLong(args[4]);
+        }
+        if (args.length > 5 && !"none".equalsIgnoreCase(args[5])) {
+            // This node's host:port as the other shards reach it, then '@' and the comma separated
+            // host:port of every shard, e.g. 10.0.0.1:4040@10.0.0.1:4040,10.0.0.2:4040. Every node
+            // must use the same names, or their rings disagree on who owns what.
+            int at = args[5].indexOf('@');
+            if (at <= 0) {
+                throw new IllegalArgumentException("Shards must be given as self@node,node,... but were " + args[5]);
+            }
+            shardRouter = new ShardRouter(args[5].substring(0, at), ShardRouter.parseNodes(args[5].substring(at + 1)));
+        }
+        if (args.length > 7 && "none".equalsIgnoreCase(dataDirectory)) {
+            // Acceptor votes must outlive a restart, or two values could be chosen for one slot
+            throw new IllegalArgumentException("Replicated mode needs a data directory for its Paxos votes");
+        }
+        contentServerValue = new ConcurrentHashMap<>();
+        weatherData = new StationStore();
+        // Lamport time by default; a hybrid logical clock keeps timestamps close to wall time
+        lamportClock = "hybrid".equalsIgnoreCase(System.getProperty("clock")) ? new HybridLogicalClock() : new LamportClock();
+        changeLog = new ChangeLog(CHANGE_LOG_CAPACITY);
+        expiryScheduler = new ExpiryScheduler(TIME_LIMIT);
+        if (!"none".equalsIgnoreCase(dataDirectory)) {
+            writeAheadLog = new WriteAheadLog(Paths.get(dataDirectory));
+            writeAheadLog.open();
+            System.out.println("Recovered " + writeAheadLog.getRecoveredEntries() + " entries from " + dataDirectory
+                    + " in " + writeAheadLog.getRecoveryMillis() + " ms");
+        }
+        // Created after recovery, so replayed PUTs are not mistaken for readings taken now. Off by
+        // default: it costs about 25 KB per station, far more than the station's record.
+        if ("on".equalsIgnoreCase(System.getProperty("history"))) {
+            stationHistory = new StationHistory();
+        }
+        if (args.length > 7) {
+            // Comma separated host:port of every replica's Paxos listener, and this replica's index in that list
+            // Resumes after the last slot in the write-ahead log, so recovered slots are not applied
+            // twice, with the promises and accepted values this replica gave for the slots after it
+            replicatedLog = new PaxosLog(List.of(args[6].split(",")), Integer.parseInt(args[7]),
+                    writeAheadLog.getReplicatedSlot(), writeAheadLog.getRecoveredVotes(),
+                    new PaxosLog.AcceptorLog() {
+                        @Override
+                        public long append(long slot, PaxosLog.Vote vote) {
+                            return writeAheadLog.appendVote(slot, vote);
+                        }
+
+                        @Override
+                        public void awaitDurable(long sequence) throws IOException {
+                            writeAheadLog.awaitDurable(sequence);
+                        }
+                    },
+                    new PaxosLog.Applier() {
+                        @Override
+                        public long apply(Map<String, List<WeatherRecord>> batch, long clock) {
+                            return applyBatch(batch, clock);
+                        }
+
+                        @Override
+                        public void applied(long slot) {
+                            commitLock.readLock().lock();
+                            try {
+                                writeAheadLog.appendSlot(slot);
+                            } finally {
+                                commitLock.readLock().unlock();
+                            }
+                        }
+                    });
+            replicatedLog.start();
+        }
+        expiryScheduler.start();
+        // One in log.sample requests is logged, 100 by default
+        requestLog = new AsyncLogger(System.out, REQUEST_LOG_CAPACITY, Integer.getInteger("log.sample", 100));
+        requestLog.start();
+        subscriptionHub = new SubscriptionHub();
+        subscriptionHub.start();
+        if ("nio".equalsIgnoreCase(mode)) {
+            // One selector thread holds every connection, a fixed pool runs the handlers
+            System.out.println("Aggregation server started on port number " + port + " (nio, " + workers + " workers)");
+            new NioServer(port, workers).run();
+            return;
+        }
+        // Accepted through a channel so subscriptions can be handed over to the hub's selector
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
         System.out.println("Aggregation server started on port number " + port);
         while (true) {
-            Socket client = serverSocket.accept();
+            Socket client = serverChannel.accept().socket();
             new HandlingClient(client).start();
         }
     }
 
-    public static synchronized JSONArray getData() {
+    public static JSONArray getData() {
         lamportClock.increaseTime();
-        long currentTime = System.currentTimeMillis();
-        for (int i = 0; i < weatherData.length(); i++) {
-            JSONObject object = weatherData.getJSONObject(i);
-            String contentServerId = object.getString("id");
-            if (currentTime - contentServerValue.getOrDefault(contentServerId, 0L) > TIME_LIMIT) {
-                weatherData.remove(i);
-                i--;
+        // The write lock waits for in-flight PUTs, so the aggregate never shows half of one
+        long waitStart = System.nanoTime();
+        commitLock.writeLock().lock();
+        metrics.lockWait("write", System.nanoTime() - waitStart);
+        try {
+            return weatherData.toJSONArray();
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+
+    // Returns the immutable view of the whole store; readers share it without taking any lock
+    public static WeatherSnapshot getSnapshot() {
+        WeatherSnapshot current = snapshot;
+        if (current != null && current.getChangeCount() == changeCount.get()) {
+            return current;
+        }
+        synchronized (WeatherSnapshot.class) { // One rebuild at a time
+            current = snapshot;
+            if (current != null && current.getChangeCount() == changeCount.get()) {
+                return current;
+            }
+            List<WeatherRecord> stations;
+            long changes;
+            long version;
+            long waitStart = System.nanoTime();
+            commitLock.writeLock().lock();
+            metrics.lockWait("write", System.nanoTime() - waitStart);
+            try {
+                changes = changeCount.get();
+                // Every change ticks the clock, so the time of the cut identifies this content
+                version = lamportClock.getTime();
+                stations = weatherData.records();
+            } finally {
+                commitLock.writeLock().unlock();
+            }
+            // Serialized outside the lock, the records themselves are never modified
+            current = new WeatherSnapshot(version, changes, stations);
+            snapshot = current;
+            return current;
+        }
+    }
+
+    // Must be called after every change to the store, before the change's locks are released
+    public static void invalidateSnapshot() {
+        changeCount.incrementAndGet();
+    }
+
+    // Content servers are spread over a fixed set of locks so pushes from different
+    // servers run in parallel while pushes from the same server stay ordered
+    private static int stripeIndex(String contentServerId) {
+        return (contentServerId.hashCode() & 0x7fffffff) % WRITE_STRIPES.length;
+    }
+
+    // Called by the expiry scheduler once a content server's deadline has passed
+    public static int expire(String contentServerId, long lastSeen) {
+        int removed = removeContentServer(contentServerId, lastSeen);
+        if (removed > 0) {
+            metrics.expired(removed);
+        }
+        return removed;
+    }
+
+    // Drops a content server and its stations; with a lastSeen time only if it has not pushed since
+    private static int removeContentServer(String contentServerId, Long lastSeen) {
+        Lock stripe = WRITE_STRIPES[stripeIndex(contentServerId)];
+        commitLock.readLock().lock();
+        stripe.lock();
+        try {
+            Long latest = contentServerValue.get(contentServerId);
+            if (latest == null || (lastSeen != null && latest.longValue() != lastSeen)) {
+                return 0; // The server pushed again since this deadline was queued
+            }
+            contentServerValue.remove(contentServerId);
+            List<String> removed = weatherData.removeOwnedBy(contentServerId);
+            if (!removed.isEmpty()) {
+                changeLog.recordExpiry(removed);
+                if (stationHistory != null) {
+                    stationHistory.remove(removed);
+                }
+                invalidateSnapshot();
+            }
+            return removed.size();
+        } finally {
+            stripe.unlock();
+            commitLock.readLock().unlock();
+        }
+    }
+
+    // Sharded mode: sends every content server whose owner changed to its new node and drops it
+    // here, returning how many stations moved. Consistent hashing keeps that to the content servers
+    // between the new node and its neighbours on the ring.
+    public static int handOff() throws IOException {
+        Map<String, Map<String, List<WeatherRecord>>> moving = new LinkedHashMap<>();
+        for (String contentServerId : contentServerValue.keySet()) {
+            if (!shardRouter.isLocal(contentServerId)) {
+                moving.computeIfAbsent(shardRouter.ownerOf(contentServerId), k -> new LinkedHashMap<>())
+                        .put(contentServerId, weatherData.recordsOwnedBy(contentServerId));
+            }
+        }
+        int moved = 0;
+        for (Map.Entry<String, Map<String, List<WeatherRecord>>> node : moving.entrySet()) {
+            shardRouter.send(node.getKey(), node.getValue(), lamportClock.getTime());
+            // New pushes already go to the new owner, so dropping the local copy loses nothing
+            for (String contentServerId : node.getValue().keySet()) {
+                moved += removeContentServer(contentServerId, null);
+            }
+        }
+        return moved;
+    }
+
+    public static JSONObject getById(String id) {
+        return weatherData.get(id); // Return null if the ID is not found
+    }
+
+    // Applies the records of one PUT, logging them first when persistence is enabled.
+    // Returns the log sequence number to wait for, or 0 when nothing was logged.
+    public static long applyPut(JSONArray records, String contentServerId, long clock) {
+        Map<String, JSONArray> batch = new LinkedHashMap<>();
+        batch.put(contentServerId, records);
+        return applyPut(batch, clock);
+    }
+
+    // Applies a batch of records for any number of content servers as one atomic change,
+    // with one clock tick, one log entry and one snapshot invalidation for the whole batch
+    public static long applyPut(Map<String, JSONArray> batch, long clock) {
+        return applyBatch(typed(batch), clock, writeAheadLog);
+    }
+
+    // Same for records that were decoded already, e.g. from a streamed or binary body
+    public static long applyBatch(Map<String, List<WeatherRecord>> batch, long clock) {
+        return applyBatch(batch, clock, writeAheadLog);
+    }
+
+    // Converted before taking any lock
+    private static Map<String, List<WeatherRecord>> typed(Map<String, JSONArray> batch) {
+        Map<String, List<WeatherRecord>> typed = new LinkedHashMap<>();
+        for (Map.Entry<String, JSONArray> entry : batch.entrySet()) {
+            List<WeatherRecord> records = new ArrayList<>(entry.getValue().length());
+            for (int i = 0; i < entry.getValue().length(); i++) {
+                records.add(WeatherRecord.fromJSON(entry.getValue().getJSONObject(i)));
             }
+            typed.put(entry.getKey(), records);
         }
-        return weatherData;
+        return typed;
     }
 
-    public static synchronized JSONObject getById(String id) {
-        for (int i = 0; i < weatherData.length(); i++) {
-            JSONObject object = weatherData.getJSONObject(i);
-            if (object.getString("id").equals(id)) {
-                return object;
+    private static long applyBatch(Map<String, List<WeatherRecord>> batch, long clock, WriteAheadLog log) {
+        // Stripes are taken in index order so overlapping batches cannot deadlock
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (String contentServerId : batch.keySet()) {
+            stripes.add(stripeIndex(contentServerId));
+        }
+        // Shared with other writers, exclusive only for snapshots that need a consistent cut
+        long waitStart = System.nanoTime();
+        commitLock.readLock().lock();
+        long stripeStart = System.nanoTime();
+        metrics.lockWait("read", stripeStart - waitStart);
+        for (int stripe : stripes) {
+            WRITE_STRIPES[stripe].lock();
+        }
+        // Contention between PUTs of the same content servers, apart from snapshots blocking the read side
+        metrics.lockWait("stripe", System.nanoTime() - stripeStart);
+        try {
+            long currentTime = lamportClock.wallTime();
+            if (batch.values().stream().allMatch(List::isEmpty)) {
+                // Heartbeats: nothing to log, record or invalidate, known content servers just stay alive
+                for (String contentServerId : batch.keySet()) {
+                    if (contentServerValue.containsKey(contentServerId)) {
+                        contentServerValue.put(contentServerId, currentTime);
+                        expiryScheduler.touch(contentServerId, currentTime);
+                    }
+                }
+                return 0;
+            }
+            long sequence = log == null ? 0 : log.append(batch, clock);
+            changeLog.recordUpdates(batch, clock); // Ticks the clock once for the whole batch
+            for (Map.Entry<String, List<WeatherRecord>> entry : batch.entrySet()) {
+                HandlingClient.updateData(entry.getValue(), entry.getKey(), currentTime);
+            }
+            invalidateSnapshot();
+            return sequence;
+        } finally {
+            for (int stripe : stripes.descendingSet()) {
+                WRITE_STRIPES[stripe].unlock();
             }
+            commitLock.readLock().unlock();
         }
-        return null; // Return null if the ID is not found
+    }
+
+    // Keeps a content server's stations alive without resending them. False when the content server
+    // is unknown, e.g. because it expired already, so it knows to send all of its records again.
+    public static boolean heartbeat(String contentServerId, long clock) throws IOException {
+        if (!contentServerValue.containsKey(contentServerId)) {
+            return false;
+        }
+        // Replicated mode agrees on heartbeats too, so every replica keeps the content server alive
+        HandlingClient.commit(Map.of(contentServerId, List.of()), clock);
+        return true;
+    }
+
+    // Recovery: puts back a station from the snapshot. Restored content servers count as
+    // seen now, so they get a full TIME_LIMIT to push again before they expire.
+    public static void restore(JSONObject record, String contentServerId) {
+        long currentTime = lamportClock.wallTime();
+        contentServerValue.put(contentServerId, currentTime);
+        expiryScheduler.touch(contentServerId, currentTime);
+        weatherData.put(record, contentServerId);
+        invalidateSnapshot();
+    }
+
+    // Recovery: applies a PUT read back from the write-ahead log without logging it again
+    public static void replay(Map<String, JSONArray> batch, long clock) {
+        applyBatch(typed(batch), clock, null);
     }
 
     public static class HandlingClient extends Thread {
@@ -64,105 +423,709 @@ public class AggregationServer {
         }
 
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                String input;
-                StringBuilder request = new StringBuilder();
-                while ((input = in.readLine()) != null && !input.isEmpty()) {
-                    request.append(input).append("\n");
-                }
-                String[] lines = request.toString().split("\n");
-                String[] parts = lines[0].split(" ");
-                String method = parts[0];
-                String path = parts[1];
-                String id = path.equals("/") ? null : path.substring(1);
-                if ("GET".equalsIgnoreCase(method)) {
-                    if (id != null) { // Handling GET by ID
-                        handleGetByIdRequest(out, id);
-                    } else {
-                        handleGetRequest(out);
+            boolean subscribed = false;
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                socket.setSoTimeout(IDLE_TIMEOUT);
+                boolean keepAlive = true;
+                // Requests are answered one after another, so pipelined requests get their responses in order
+                while (keepAlive) {
+                    String[] lines = readRequestLines(in);
+                    if (lines == null) {
+                        break; // Client closed the connection
+                    }
+                    if (isEventStreamRequest(lines) && socket.getChannel() != null) {
+                        // The hub writes the events from now on, this thread is done with the socket
+                        startEventStream(socket.getChannel());
+                        subscribed = true;
+                        return;
                     }
+                    keepAlive = handleRequest(lines, in, out);
+                }
+            } catch (SocketTimeoutException e) {
+                // Idle connection, just close it
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (!subscribed) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        // GET / asking for text/event-stream subscribes to the update feed
+        public static boolean isEventStreamRequest(String[] lines) {
+            String accept = headerValue(lines, "Accept");
+            String[] parts = lines[0].split(" ");
+            return subscriptionHub != null && accept != null && accept.contains("text/event-stream")
+                    && parts.length > 1 && "GET".equalsIgnoreCase(parts[0]) && (parts[1].equals("/") || parts[1].isEmpty());
+        }
+
+        // Hands the connection to the subscription hub, which sends the headers of an open-ended event
+        // stream and then every later change; the Lamport-Clock header is the position the feed starts after
+        public static void startEventStream(SocketChannel channel) throws IOException {
+            changeLog.subscribe(channel, clock -> ("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: text/event-stream\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + "Lamport-Clock: " + clock + "\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Reads the request line and headers of the next request, or null at end of stream
+        private static String[] readRequestLines(InputStream in) throws IOException {
+            String input;
+            // Skip blank lines left between requests, e.g. the newline after a PUT body
+            while ((input = readLine(in)) != null && input.isEmpty()) {
+            }
+            if (input == null) {
+                return null;
+            }
+            StringBuilder request = new StringBuilder();
+            do {
+                if (request.length() > MAX_HEADER_SIZE) {
+                    throw new IOException("Headers too long");
                 }
-                else if ("PUT".equalsIgnoreCase(method)) {
-                    handlePutRequest(in, out, lines);
+                request.append(input).append("\n");
+            } while ((input = readLine(in)) != null && !input.isEmpty());
+            return request.toString().split("\n");
+        }
+
+        // Reads one header line byte by byte, so the body that follows stays in the stream untouched
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (line.size() == MAX_HEADER_LINE) {
+                    throw new IOException("Header line too long");
+                }
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0) {
+                return null;
+            }
+            String text = line.toString(StandardCharsets.UTF_8);
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+        }
+
+        // Dispatches one parsed request; shared by the thread-per-connection and NIO servers.
+        // Returns whether the connection should stay open for another request.
+        public static boolean handleRequest(String[] lines, InputStream in, OutputStream out) throws IOException {
+            long start = System.nanoTime();
+            int[] status = responseStatus.get();
+            status[0] = 0; // Stays 0 when the connection failed before a response was written
+            try {
+                return dispatch(lines, in, out);
+            } finally {
+                String method = lines[0].regionMatches(true, 0, "GET ", 0, 4) ? "GET"
+                        : lines[0].regionMatches(true, 0, "PUT ", 0, 4) ? "PUT" : "other";
+                metrics.request(method, status[0], System.nanoTime() - start);
+            }
+        }
+
+        private static boolean dispatch(String[] lines, InputStream in, OutputStream out) throws IOException {
+            boolean keepAlive = isKeepAlive(lines);
+            String[] parts = lines[0].split(" ");
+            if (parts.length < 2) {
+                writeResponse(out, "400 Bad Request", (byte[]) null, false);
+                return false;
+            }
+            String method = parts[0];
+            String path = parts[1];
+            String query = null;
+            int questionMark = path.indexOf('?');
+            if (questionMark >= 0) {
+                query = path.substring(questionMark + 1);
+                path = path.substring(0, questionMark);
+            }
+            String id = path.isEmpty() || path.equals("/") ? null : path.substring(1);
+            if ("GET".equalsIgnoreCase(method)) {
+                String since = queryValue(query, "since");
+                if (path.equals("/metrics")) {
+                    writeResponse(out, "200 OK", metrics.scrape().getBytes(StandardCharsets.UTF_8), keepAlive,
+                            "Content-Type: " + Metrics.CONTENT_TYPE);
+                } else if (id != null && id.endsWith("/history")) {
+                    handleHistoryRequest(out, lines, id.substring(0, id.length() - "/history".length()), query, keepAlive);
+                } else if (id != null) { // Handling GET by ID
+                    handleGetByIdRequest(out, lines, id, keepAlive);
+                } else if (since != null) {
+                    handleDeltaRequest(out, lines, since, keepAlive);
+                } else if (query != null && !query.isEmpty()) {
+                    handleQueryRequest(out, lines, query, keepAlive);
+                } else {
+                    handleGetRequest(out, lines, keepAlive);
+                }
+            }
+            else if ("PUT".equalsIgnoreCase(method) && path.equals("/heartbeat")) {
+                handleHeartbeatRequest(out, lines, keepAlive);
+            }
+            else if ("PUT".equalsIgnoreCase(method) && path.equals("/cluster") && shardRouter != null) {
+                return handleClusterRequest(in, out, lines, keepAlive);
+            }
+            else if ("PUT".equalsIgnoreCase(method)) {
+                return handlePutRequest(in, out, lines, keepAlive);
+            } else {
+                writeResponse(out, "400 Bad Request", (byte[]) null, false);
+                return false;
+            }
+            return keepAlive;
+        }
+
+        // Value of a query string parameter, or null when it is absent
+        private static String queryValue(String query, String name) {
+            if (query == null) {
+                return null;
+            }
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                    return pair.substring(equals + 1);
+                }
+            }
+            return null;
+        }
+
+        // Connections stay open only when the client asks for it, so one-shot clients reading until EOF keep working
+        private static boolean isKeepAlive(String[] lines) {
+            return "keep-alive".equalsIgnoreCase(headerValue(lines, "Connection"));
+        }
+
+        // Value of a request header, matched case-insensitively, or null when it is absent
+        static String headerValue(String[] lines, String name) {
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i];
+                if (line.length() > name.length() && line.charAt(name.length()) == ':'
+                        && line.regionMatches(true, 0, name, 0, name.length())) {
+                    return line.substring(name.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        // Declared body length, 0 when there is none and -1 when it is not a non-negative number
+        static long contentLength(String[] lines) {
+            String length = headerValue(lines, "Content-Length");
+            if (length == null) {
+                return 0;
+            }
+            try {
+                return Math.max(-1, Long.parseLong(length));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // Writes a complete response framed by Content-Length so the connection can be reused
+        private static void writeResponse(OutputStream out, String status, byte[] body, boolean keepAlive,
+                                          String... extraHeaders) throws IOException {
+            responseStatus.get()[0] = Integer.parseInt(status.substring(0, 3));
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(status).append("\r\n");
+            if (body != null && !(extraHeaders.length > 0 && extraHeaders[0].startsWith("Content-Type:"))) {
+                head.append("Content-Type: application/json\r\n");
+            }
+            head.append("Lamport-Clock: ").append(lamportClock.getTime()).append("\r\n");
+            for (String header : extraHeaders) {
+                head.append(header).append("\r\n");
+            }
+            head.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+            head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.UTF_8));
+            if (body != null) {
+                out.write(body);
+            }
+            out.flush();
+        }
+
+        private static void handleGetRequest(OutputStream out, String[] lines, boolean keepAlive) throws IOException {
+            lamportClock.increaseTime();
+            WeatherSnapshot current = getSnapshot();
+            if (isSharded(lines)) {
+                handleGatheredGetRequest(out, lines, current, keepAlive);
+                return;
+            }
+            if (BinaryRecords.accepts(headerValue(lines, "Accept"))) {
+                if (current.getBinaryETag().equals(headerValue(lines, "If-None-Match"))) {
+                    writeResponse(out, "304 Not Modified", (byte[]) null, keepAlive, "ETag: " + current.getBinaryETag());
                 } else {
-                    out.println("HTTP/1.1 400 Bad Request");
+                    writeResponse(out, "200 OK", current.getBinaryBody(), keepAlive, "Content-Type: " + BinaryRecords.CONTENT_TYPE,
+                            "ETag: " + current.getBinaryETag(), "Vary: Accept");
+                }
+                return;
+            }
+            if (current.getETag().equals(headerValue(lines, "If-None-Match"))) {
+                writeResponse(out, "304 Not Modified", (byte[]) null, keepAlive, "ETag: " + current.getETag());
+                return;
+            }
+            String coding = current.getBody().length >= Compression.MIN_SIZE
+                    ? Compression.negotiate(headerValue(lines, "Accept-Encoding")) : null;
+            // The cached bytes go straight to the socket, nothing is serialized or compressed per request
+            if (coding != null) {
+                writeResponse(out, "200 OK", current.getBody(coding), keepAlive, "ETag: " + current.getETag(),
+                        "Content-Encoding: " + coding, "Vary: Accept-Encoding");
+            } else {
+                writeResponse(out, "200 OK", current.getBody(), keepAlive, "ETag: " + current.getETag());
+            }
+        }
+
+        // Sharded mode: this node's stations followed by every other node's, fetched in the binary
+        // encoding. The result spans nodes, so it is neither cached nor tagged.
+        private static void handleGatheredGetRequest(OutputStream out, String[] lines, WeatherSnapshot current,
+                                                     boolean keepAlive) throws IOException {
+            // Two content servers on different nodes may report the same station; the first copy wins
+            Map<String, WeatherRecord> stations = new LinkedHashMap<>();
+            for (WeatherRecord record : current.getRecords()) {
+                stations.put(record.getId(), record);
+            }
+            try {
+                for (HttpResponse response : shardRouter.gather("/", BinaryRecords.CONTENT_TYPE, lamportClock.getTime())) {
+                    for (WeatherRecord record : BinaryRecords.decode(response.getBody())) {
+                        stations.putIfAbsent(record.getId(), record);
+                    }
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                System.err.println("Gathering shards failed: " + e.getMessage());
+                writeResponse(out, "502 Bad Gateway", (byte[]) null, keepAlive);
+                return;
+            }
+            List<WeatherRecord> records = new ArrayList<>(stations.values());
+            if (BinaryRecords.accepts(headerValue(lines, "Accept"))) {
+                writeResponse(out, "200 OK", BinaryRecords.encode(records), keepAlive,
+                        "Content-Type: " + BinaryRecords.CONTENT_TYPE, "Vary: Accept");
+            } else {
+                writeCompressible(out, lines, WeatherRecord.toJSONString(records).getBytes(StandardCharsets.UTF_8), keepAlive);
+            }
+        }
+
+        // Whether a read has to cover the other shards too; requests from another node never do
+        private static boolean isSharded(String[] lines) {
+            return shardRouter != null && headerValue(lines, ShardRouter.LOCAL_HEADER) == null;
+        }
+
+        // Passes another node's answer on unchanged apart from its transfer coding
+        private static void relay(OutputStream out, HttpResponse response, boolean keepAlive) throws IOException {
+            String contentType = response.getHeader("Content-Type");
+            writeResponse(out, response.getStatusLine().substring(response.getStatusLine().indexOf(' ') + 1),
+                    response.getBody(), keepAlive, "Content-Type: " + (contentType == null ? "application/json" : contentType));
+        }
+
+        // Only the stations changed or expired after the given Lamport time, falling back to
+        // every station when that time has already left the change log
+        private static void handleDeltaRequest(OutputStream out, String[] lines, String since, boolean keepAlive) throws IOException {
+            long sinceClock;
+            try {
+                sinceClock = Long.parseLong(since);
+            } catch (NumberFormatException e) {
+                writeResponse(out, "400 Bad Request", (byte[]) null, keepAlive);
+                return;
+            }
+            lamportClock.increaseTime();
+            JSONObject delta = changeLog.since(sinceClock);
+            byte[] body;
+            if (delta != null) {
+                body = delta.toString().getBytes(StandardCharsets.UTF_8);
+            } else {
+                // Wrap the cached snapshot bytes instead of serializing the store again
+                WeatherSnapshot current = getSnapshot();
+                byte[] prefix = ("{\"since\":" + sinceClock + ",\"until\":" + current.getVersion()
+                        + ",\"full\":true,\"expired\":[],\"updated\":").getBytes(StandardCharsets.UTF_8);
+                body = new byte[prefix.length + current.getBody().length + 1];
+                System.arraycopy(prefix, 0, body, 0, prefix.length);
+                System.arraycopy(current.getBody(), 0, body, prefix.length, current.getBody().length);
+                body[body.length - 1] = '}';
             }
+            writeCompressible(out, lines, body, keepAlive);
         }
 
-        private static void handleGetRequest(PrintWriter out) {
-            JSONArray currentWeatherData = getData();
-            out.println("HTTP/1.1 200 OK");
-            out.println("Content-Type: application/json");
-            out.println("Lamport-Clock: " + lamportClock.getTime());
-            out.println();
-            out.println(currentWeatherData.toString());
+        // Stations matching the filters in the query string, see StationQuery
+        private static void handleQueryRequest(OutputStream out, String[] lines, String queryString, boolean keepAlive) throws IOException {
+            StationQuery query;
+            try {
+                query = StationQuery.parse(queryString);
+            } catch (IllegalArgumentException e) {
+                writeResponse(out, "400 Bad Request", (byte[]) null, keepAlive);
+                return;
+            }
+            lamportClock.increaseTime();
+            JSONArray matches = weatherData.query(query);
+            if (isSharded(lines)) {
+                try {
+                    Set<String> seen = new HashSet<>();
+                    for (int i = 0; i < matches.length(); i++) {
+                        seen.add(matches.getJSONObject(i).optString("id"));
+                    }
+                    for (HttpResponse response : shardRouter.gather("/?" + queryString, "application/json", lamportClock.getTime())) {
+                        JSONArray remote = new JSONArray(response.getBodyText());
+                        for (int i = 0; i < remote.length(); i++) {
+                            // Same rule as GET /: a station another node reported first is skipped
+                            String id = remote.getJSONObject(i).optString("id", null);
+                            if (id == null || seen.add(id)) {
+                                matches.put(remote.getJSONObject(i));
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Gathering shards failed: " + e.getMessage());
+                    writeResponse(out, "502 Bad Gateway", (byte[]) null, keepAlive);
+                    return;
+                }
+            }
+            byte[] body = matches.toString().getBytes(StandardCharsets.UTF_8);
+            writeCompressible(out, lines, body, keepAlive);
         }
 
-        private static void handleGetByIdRequest(PrintWriter out, String id) {
-            JSONObject data = getById(id);
-            if (data != null) {
-                out.println("HTTP/1.1 200 OK");
-                out.println("Content-Type: application/json");
-                out.println("Lamport-Clock: " + lamportClock.getTime());
-                out.println();
-                out.println(data.toString());
+        // A 200 response whose body is compressed when it is large and the client accepts it
+        private static void writeCompressible(OutputStream out, String[] lines, byte[] body, boolean keepAlive,
+                                              String... extraHeaders) throws IOException {
+            String coding = body.length >= Compression.MIN_SIZE
+                    ? Compression.negotiate(headerValue(lines, "Accept-Encoding")) : null;
+            if (coding != null) {
+                String[] headers = Arrays.copyOf(extraHeaders, extraHeaders.length + 2);
+                headers[extraHeaders.length] = "Content-Encoding: " + coding;
+                headers[extraHeaders.length + 1] = "Vary: Accept-Encoding";
+                writeResponse(out, "200 OK", Compression.encode(body, coding), keepAlive, headers);
             } else {
-                out.println("HTTP/1.1 404 Not Found");
+                writeResponse(out, "200 OK", body, keepAlive, extraHeaders);
             }
         }
 
-        public static void handlePutRequest(BufferedReader in, PrintWriter out, String[] requestLines) throws IOException {
-            int clientClockTime = 0;
-            int contentLength = 0;
-            String contentServerId = "";
+        // Entity tag of a body that is not a snapshot, taken from its bytes like the snapshot's
+        // so it is the same on every node and across restarts
+        private static String contentTag(byte[] body) {
+            return "\"" + WeatherSnapshot.contentHash(body) + "\"";
+        }
 
-            for (String line : requestLines) {
-                if (line.startsWith("Content-Length:")) {
-                    contentLength = Integer.parseInt(line.split(":")[1].trim());
-                } else if (line.startsWith("Lamport-Clock:")) {
-                    clientClockTime = Integer.parseInt(line.split(":")[1].trim());
-                } else if (line.startsWith("Content-Server-ID:")) {
-                    contentServerId = line.split(":")[1].trim();
+        // GET /{id}/history?resolution=raw|minute|hour&fields=air_temp,press
+        private static void handleHistoryRequest(OutputStream out, String[] lines, String id, String query,
+                                                 boolean keepAlive) throws IOException {
+            String resolution = queryValue(query, "resolution");
+            String fields = queryValue(query, "fields");
+            JSONArray points;
+            try {
+                points = stationHistory == null ? null : stationHistory.points(id,
+                        resolution == null ? "raw" : resolution, fields == null ? null : List.of(fields.split(",")));
+            } catch (IllegalArgumentException e) {
+                writeResponse(out, "400 Bad Request", (byte[]) null, keepAlive);
+                return;
+            }
+            if (points == null && isSharded(lines)) {
+                HttpResponse found = shardRouter.findFirst("/" + id + "/history" + (query == null ? "" : "?" + query),
+                        "application/json", lamportClock.getTime());
+                if (found != null) {
+                    relay(out, found, keepAlive);
+                    return;
                 }
             }
+            if (points == null) {
+                writeResponse(out, "404 Not Found", (byte[]) null, keepAlive);
+                return;
+            }
+            lamportClock.increaseTime();
+            JSONObject history = new JSONObject().put("id", id)
+                    .put("resolution", resolution == null ? "raw" : resolution).put("points", points);
+            writeCompressible(out, lines, history.toString().getBytes(StandardCharsets.UTF_8), keepAlive);
+        }
 
-            char[] body = new char[contentLength];
-            in.read(body, 0, contentLength);
-            String jsonData = new String(body);
-            System.out.println("Received JSON: " + jsonData); // Log incoming JSON
+        private static void handleGetByIdRequest(OutputStream out, String[] lines, String id, boolean keepAlive) throws IOException {
+            WeatherRecord record = weatherData.getRecord(id);
+            if (record != null) {
+                boolean binary = BinaryRecords.accepts(headerValue(lines, "Accept"));
+                byte[] body = binary ? BinaryRecords.encode(List.of(record)) : record.toString().getBytes(StandardCharsets.UTF_8);
+                String etag = contentTag(body);
+                if (etag.equals(headerValue(lines, "If-None-Match"))) {
+                    writeResponse(out, "304 Not Modified", (byte[]) null, keepAlive, "ETag: " + etag);
+                } else if (binary) {
+                    writeResponse(out, "200 OK", body, keepAlive, "Content-Type: " + BinaryRecords.CONTENT_TYPE,
+                            "ETag: " + etag, "Vary: Accept");
+                } else {
+                    writeCompressible(out, lines, body, keepAlive, "ETag: " + etag);
+                }
+            } else {
+                // The station may belong to a content server another node owns
+                HttpResponse found = isSharded(lines)
+                        ? shardRouter.findFirst("/" + id, headerValue(lines, "Accept"), lamportClock.getTime()) : null;
+                if (found != null) {
+                    relay(out, found, keepAlive);
+                } else {
+                    writeResponse(out, "404 Not Found", (byte[]) null, keepAlive);
+                }
+            }
+        }
 
+        // Returns whether the connection can be reused; a rejected body is left unread, so it cannot
+        public static boolean handlePutRequest(InputStream in, OutputStream out, String[] requestLines, boolean keepAlive) throws IOException {
+            long contentLength = contentLength(requestLines);
+            if (contentLength < 0) {
+                // Without a length the body cannot be told apart from the next request
+                writeResponse(out, "400 Bad Request", (byte[]) null, false);
+                return false;
+            }
+            String clock = headerValue(requestLines, "Lamport-Clock");
+            long clientClockTime;
             try {
-                JSONArray newDataArray = new JSONArray(jsonData); // Change this line to JSONArray
-                for (int i = 0; i < newDataArray.length(); i++) {
-                    JSONObject newData = newDataArray.getJSONObject(i);
-                    updateData(newData, contentServerId, clientClockTime); // Update data for each JSONObject
+                clientClockTime = clock == null ? 0 : Long.parseLong(clock);
+            } catch (NumberFormatException e) {
+                clientClockTime = -1;
+            }
+            if (!lamportClock.accepts(clientClockTime)) {
+                writeResponse(out, "400 Bad Request", (byte[]) null, false);
+                return false;
+            }
+            String contentServerId = headerValue(requestLines, "Content-Server-ID");
+            if (contentServerId == null) {
+                contentServerId = "";
+            }
+
+            if (contentLength > maxBodySize) {
+                writeResponse(out, "413 Payload Too Large", (byte[]) null, false);
+                return false;
+            }
+
+            String coding = headerValue(requestLines, "Content-Encoding");
+            String contentType = headerValue(requestLines, "Content-Type");
+            boolean binary = BinaryRecords.isBinary(contentType);
+            if (!Compression.isSupported(coding) || !(binary || contentType == null
+                    || contentType.trim().toLowerCase().startsWith("application/json"))) {
+                writeResponse(out, "415 Unsupported Media Type", (byte[]) null, false);
+                return false;
+            }
+
+            // Content-Length counts bytes, the body is never read past it
+            BodyInputStream body = new BodyInputStream(in, contentLength);
+            try {
+                // Content-Length is the compressed size when the content server sent a coded body,
+                // the decoded size is held to the same limit
+                InputStream decoded = Compression.decode(body, coding, maxBodySize);
+                RecordReader reader = binary ? new BinaryRecordReader(decoded, contentServerId)
+                        : new RecordStreamReader(decoded, contentServerId);
+                ShardRouter.Split split = null;
+                if (shardRouter != null && headerValue(requestLines, ShardRouter.FORWARDED_HEADER) == null) {
+                    // Records of content servers owned by other nodes are forwarded in batches as they come
+                    split = shardRouter.split(reader, STREAM_BATCH_SIZE);
+                    reader = split;
                 }
-                out.println("HTTP/1.1 200 OK");
-                out.println("Lamport-Clock: " + lamportClock.getTime());
+                int records = streamRecords(reader, clientClockTime);
+                if (split != null) {
+                    records += split.forward();
+                }
+                if (requestLog != null) {
+                    int received = records;
+                    String from = contentServerId;
+                    requestLog.sample(() -> "Received " + received + " records from " + from);
+                }
+                writeResponse(out, "200 OK", (byte[]) null, keepAlive);
             } catch (JSONException e) {
                 System.err.println("Error parsing JSON: " + e.getMessage());
-                out.println("HTTP/1.1 500 Internal Server Error");
+                writeResponse(out, "500 Internal Server Error", (byte[]) null, keepAlive);
+            } catch (ZipException | IllegalArgumentException | EOFException e) {
+                System.err.println("Error decoding body: " + e.getMessage());
+                writeResponse(out, "400 Bad Request", (byte[]) null, keepAlive);
+            } catch (PaxosLog.QuorumException e) {
+                System.err.println("Replication failed: " + e.getMessage());
+                writeResponse(out, "503 Service Unavailable", (byte[]) null, keepAlive);
+            } catch (ShardRouter.ForwardException e) {
+                System.err.println("Forwarding to a shard failed: " + e.getMessage());
+                writeResponse(out, "502 Bad Gateway", (byte[]) null, keepAlive);
+            } catch (Compression.TooLargeException e) {
+                System.err.println("Error decoding body: " + e.getMessage());
+                writeResponse(out, "413 Payload Too Large", (byte[]) null, keepAlive);
+            } catch (WriteAheadLog.SyncException e) {
+                // Already applied and visible, but it would not survive a restart
+                System.err.println("Persisting a PUT failed: " + e.getMessage());
+                writeResponse(out, "500 Internal Server Error", (byte[]) null, keepAlive);
+            } finally {
+                body.skipRemaining();
             }
+            return keepAlive;
         }
 
-        private static synchronized void updateData(JSONObject newEntry, String contentServerId, int receivedClock) {
-            lamportClock.updateTime(receivedClock);
-            contentServerValue.put(contentServerId, System.currentTimeMillis());
+        // PUT /heartbeat with a Content-Server-ID header and no body: 200 while the server still
+        // holds that content server's stations, 404 once they are gone and must be sent again
+        private static void handleHeartbeatRequest(OutputStream out, String[] lines, boolean keepAlive) throws IOException {
+            String contentServerId = headerValue(lines, "Content-Server-ID");
+            String clock = headerValue(lines, "Lamport-Clock");
+            if (contentServerId == null) {
+                writeResponse(out, "400 Bad Request", (byte[]) null, keepAlive);
+                return;
+            }
+            long clientClockTime;
+            try {
+                clientClockTime = clock == null ? 0 : Long.parseLong(clock);
+            } catch (NumberFormatException e) {
+                clientClockTime = -1;
+            }
+            if (!lamportClock.accepts(clientClockTime)) {
+                writeResponse(out, "400 Bad Request", (byte[]) null, keepAlive);
+                return;
+            }
+            boolean known;
+            try {
+                if (shardRouter != null && !shardRouter.isLocal(contentServerId)
+                        && headerValue(lines, ShardRouter.FORWARDED_HEADER) == null) {
+                    known = shardRouter.heartbeat(shardRouter.ownerOf(contentServerId), contentServerId, clientClockTime);
+                } else {
+                    known = heartbeat(contentServerId, clientClockTime);
+                }
+            } catch (PaxosLog.QuorumException e) {
+                writeResponse(out, "503 Service Unavailable", (byte[]) null, keepAlive);
+                return;
+            } catch (IOException e) {
+                System.err.println("Forwarding a heartbeat failed: " + e.getMessage());
+                writeResponse(out, "502 Bad Gateway", (byte[]) null, keepAlive);
+                return;
+            }
+            lamportClock.updateTime(clientClockTime);
+            writeResponse(out, known ? "200 OK" : "404 Not Found", (byte[]) null, keepAlive);
+        }
 
-            // Remove old data for the content server ID if it exists
-            for (int i = 0; i < weatherData.length(); i++) {
-                JSONObject object = weatherData.getJSONObject(i);
-                if (object.getString("id").equals(contentServerId)) {
-                    weatherData.remove(i);
-                    break;
+        // Sharded mode: PUT /cluster with a JSON array of "host:port" nodes replaces the membership.
+        // The node that receives it passes the list on to every old and new member; each of them
+        // then hands the content servers it no longer owns to their new node.
+        private static boolean handleClusterRequest(InputStream in, OutputStream out, String[] lines, boolean keepAlive) throws IOException {
+            long contentLength = contentLength(lines);
+            if (contentLength < 0) {
+                writeResponse(out, "400 Bad Request", (byte[]) null, false);
+                return false;
+            }
+            if (contentLength > maxBodySize) {
+                writeResponse(out, "413 Payload Too Large", (byte[]) null, false);
+                return false;
+            }
+            byte[] body = new BodyInputStream(in, contentLength).readAllBytes();
+            List<String> nodes;
+            try {
+                JSONArray array = new JSONArray(new String(body, StandardCharsets.UTF_8));
+                List<String> listed = new ArrayList<>();
+                for (int i = 0; i < array.length(); i++) {
+                    listed.add(array.getString(i));
                 }
+                nodes = ShardRouter.parseNodes(String.join(",", listed));
+            } catch (JSONException | IllegalArgumentException e) {
+                writeResponse(out, "400 Bad Request", (byte[]) null, keepAlive);
+                return keepAlive;
             }
-            weatherData.put(newEntry); // Add the new data entry
+            lamportClock.increaseTime();
+            try {
+                if (headerValue(lines, ShardRouter.FORWARDED_HEADER) == null) {
+                    Set<String> members = new LinkedHashSet<>(shardRouter.nodes());
+                    members.addAll(nodes);
+                    members.remove(shardRouter.getSelf());
+                    for (String node : members) {
+                        shardRouter.announce(node, body, lamportClock.getTime());
+                    }
+                }
+                shardRouter.setNodes(nodes);
+                int moved = handOff();
+                System.out.println("Shards are now " + nodes + ", handed off " + moved + " stations");
+                JSONObject result = new JSONObject().put("nodes", new JSONArray(nodes)).put("moved", moved);
+                writeResponse(out, "200 OK", result.toString().getBytes(StandardCharsets.UTF_8), keepAlive);
+            } catch (IOException e) {
+                System.err.println("Changing shards failed: " + e.getMessage());
+                writeResponse(out, "502 Bad Gateway", (byte[]) null, keepAlive);
+            }
+            return keepAlive;
         }
 
+        // Applies records as they are parsed, in batches of STREAM_BATCH_SIZE so memory stays bounded.
+        // A body that fits in one batch is applied atomically; larger uploads commit batch by batch.
+        private static int streamRecords(RecordReader reader, long clientClockTime) throws IOException {
+            Map<String, List<WeatherRecord>> batch = new LinkedHashMap<>();
+            int pending = 0;
+            int total = 0;
+            long sequence = 0;
+            // Parse time excludes the commits in between, which the lock wait and request metrics cover
+            long parseNanos = 0;
+            long parseStart = System.nanoTime();
+            while (reader.next()) {
+                batch.computeIfAbsent(reader.contentServerId(), k -> new ArrayList<>()).add(reader.record());
+                total++;
+                if (++pending == STREAM_BATCH_SIZE) {
+                    parseNanos += System.nanoTime() - parseStart;
+                    // Logged and applied in one critical section so snapshots never miss a logged PUT
+                    sequence = commit(batch, clientClockTime);
+                    batch = new LinkedHashMap<>();
+                    pending = 0;
+                    parseStart = System.nanoTime();
+                }
+            }
+            metrics.parsed(total, parseNanos + System.nanoTime() - parseStart);
+            if (pending > 0) {
+                sequence = commit(batch, clientClockTime);
+            }
+            if (writeAheadLog != null && sequence > 0) {
+                // Wait outside the lock so concurrent PUTs can share one fsync
+                writeAheadLog.awaitDurable(sequence);
+            }
+            return total;
+        }
+
+        // In replicated mode the batch is agreed with the other replicas first, and every replica
+        // applies it once it is decided
+        private static long commit(Map<String, List<WeatherRecord>> batch, long clientClockTime) throws IOException {
+            return replicatedLog != null ? replicatedLog.replicate(batch, clientClockTime) : applyBatch(batch, clientClockTime);
+        }
+
+        // Callers hold the commit lock's read side and the content server's stripe
+        private static void updateData(List<WeatherRecord> records, String contentServerId, long currentTime) {
+            contentServerValue.put(contentServerId, currentTime);
+            expiryScheduler.touch(contentServerId, currentTime);
+            for (WeatherRecord record : records) {
+                weatherData.put(record, contentServerId); // Replaces the old record of the station if it exists
+                if (stationHistory != null) {
+                    stationHistory.record(record, currentTime);
+                }
+            }
+        }
+
+        // Exposes exactly Content-Length bytes of the connection, so a parser reading ahead
+        // can never consume the start of the next pipelined request
+        private static class BodyInputStream extends FilterInputStream {
+            private long remaining;
+
+            BodyInputStream(InputStream in, long length) {
+                super(in);
+                this.remaining = length;
+            }
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b >= 0) {
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n = super.read(buffer, offset, (int) Math.min(length, remaining));
+                if (n > 0) {
+                    remaining -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() {
+                // The connection stays open for the next request
+            }
+
+            // Discards whatever the parser did not need, e.g. after a syntax error
+            void skipRemaining() throws IOException {
+                byte[] scratch = new byte[8192];
+                while (remaining > 0 && read(scratch, 0, scratch.length) > 0) {
+                }
+            }
+        }
     }
 }
@@ -2,9 +2,19 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -17,8 +27,16 @@ public class AggregationServerTest {
     public void setUp() {
         server = new AggregationServer();
         server.lamportClock = new LamportClock();
-        server.weatherData = new JSONArray();
+        server.weatherData = new StationStore();
         server.contentServerValue = new HashMap<>();
+        server.expiryScheduler = new ExpiryScheduler(AggregationServer.TIME_LIMIT);
+        server.writeAheadLog = null;
+        server.changeLog = new ChangeLog(4);
+        server.subscriptionHub = null;
+        server.stationHistory = null;
+        server.shardRouter = null;
+        server.replicatedLog = null;
+        AggregationServer.invalidateSnapshot();
     }
 
     // Test getData() method
@@ -47,7 +65,13 @@ public class AggregationServerTest {
         mockData.put("id", "server1");
         mockData.put("temperature", 25);
         server.weatherData.put(mockData);
-        server.contentServerValue.put("server1", System.currentTimeMillis() - AggregationServer.TIME_LIMIT - 1);
+        long lastSeen = System.currentTimeMillis() - AggregationServer.TIME_LIMIT - 1;
+        server.contentServerValue.put("server1", lastSeen);
+        server.expiryScheduler.touch("server1", lastSeen);
+
+        // Expiry runs in the background, so GET alone must not remove anything
+        assertEquals(1, AggregationServer.getData().length());
+        assertEquals(1, server.expiryScheduler.sweep(System.currentTimeMillis()));
 
         // Fetch data
         JSONArray result = AggregationServer.getData();
@@ -56,6 +80,911 @@ public class AggregationServerTest {
         assertEquals(0, result.length());
     }
 
+    // Test that a content server which pushed again is not expired by its older deadline
+    @Test
+    public void testSweepSkipsRefreshedContentServer() {
+        JSONObject mockData = new JSONObject();
+        mockData.put("id", "server1");
+        mockData.put("temperature", 25);
+        server.weatherData.put(mockData);
+        long lastSeen = System.currentTimeMillis() - AggregationServer.TIME_LIMIT - 1;
+        server.expiryScheduler.touch("server1", lastSeen);
+        server.contentServerValue.put("server1", System.currentTimeMillis());
+
+        assertEquals(0, server.expiryScheduler.sweep(System.currentTimeMillis()));
+        assertEquals(1, AggregationServer.getData().length());
+    }
+
+    // Test that the cached snapshot is reused until the store changes, and that its ETag follows the content
+    // rather than the Lamport time, which starts over after a restart
+    @Test
+    public void testSnapshotCachedUntilInvalidated() {
+        JSONObject mockData = new JSONObject();
+        mockData.put("id", "server1");
+        mockData.put("temperature", 25);
+        server.weatherData.put(mockData);
+        AggregationServer.invalidateSnapshot();
+
+        WeatherSnapshot first = AggregationServer.getSnapshot();
+        assertSame(first, AggregationServer.getSnapshot());
+        // Records are written field by field, so compare the content rather than the key order
+        assertTrue(AggregationServer.getData().similar(new JSONArray(new String(first.getBody()))));
+
+        server.lamportClock.increaseTime();
+        AggregationServer.invalidateSnapshot();
+        WeatherSnapshot second = AggregationServer.getSnapshot();
+        assertNotSame(first, second);
+        assertEquals(first.getETag(), second.getETag());
+
+        server.weatherData.put(new JSONObject().put("id", "server2"));
+        AggregationServer.invalidateSnapshot();
+        WeatherSnapshot third = AggregationServer.getSnapshot();
+        assertNotEquals(first.getETag(), third.getETag());
+        assertNotEquals(third.getETag(), third.getBinaryETag());
+    }
+
+    // Test that the store and the replicated log position are rebuilt from the snapshot and the log tail after a restart
+    @Test
+    public void testRecoveryFromSnapshotAndLog(@TempDir Path directory) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(directory);
+        log.open();
+        server.writeAheadLog = log;
+        JSONArray first = new JSONArray().put(new JSONObject().put("id", "station1").put("air_temp", 10.5));
+        JSONArray second = new JSONArray().put(new JSONObject().put("id", "station2").put("air_temp", 12.0));
+        AggregationServer.applyPut(first, "server1", 3);
+        log.appendSlot(0);
+        log.snapshot();
+        AggregationServer.applyPut(second, "server2", 4);
+        log.awaitDurable(log.appendSlot(1));
+
+        // Simulate a restart with an empty store
+        setUp();
+        WriteAheadLog recovered = new WriteAheadLog(directory);
+        recovered.open();
+
+        assertEquals(2, recovered.getRecoveredEntries());
+        assertEquals(1, recovered.getReplicatedSlot());
+        assertEquals(10.5, AggregationServer.getById("station1").getDouble("air_temp"));
+        assertEquals(12.0, AggregationServer.getById("station2").getDouble("air_temp"));
+        assertTrue(server.lamportClock.getTime() > 4);
+    }
+
+    // Test that a PUT whose log entry cannot be made durable still gets an answer
+    @Test
+    public void testPutAnsweredWhenLogFails(@TempDir Path directory) throws IOException {
+        // Never opened, so nothing flushes and the interrupted wait is the failure
+        server.writeAheadLog = new WriteAheadLog(directory);
+        byte[] body = "[{\"id\": \"a\"}]".getBytes(StandardCharsets.UTF_8);
+        String[] lines = {"PUT /weather.json HTTP/1.1", "Content-Length: " + body.length, "Content-Server-ID: server1"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Thread.currentThread().interrupt();
+        try {
+            AggregationServer.HandlingClient.handleRequest(lines, new ByteArrayInputStream(body), out);
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 500"));
+    }
+
+    // Test that pushes from different content servers run concurrently without losing stations
+    @Test
+    public void testConcurrentPutsFromManyContentServers() throws InterruptedException {
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            String contentServerId = "server" + t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    JSONArray records = new JSONArray().put(new JSONObject().put("id", contentServerId + "-" + i));
+                    AggregationServer.applyPut(records, contentServerId, 0);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(800, AggregationServer.getData().length());
+        assertEquals(800, new JSONArray(new String(AggregationServer.getSnapshot().getBody())).length());
+    }
+
+    // Test that one batch updates several content servers with a single clock tick
+    @Test
+    public void testBatchPutForManyContentServers() {
+        Map<String, JSONArray> batch = new LinkedHashMap<>();
+        batch.put("server1", new JSONArray().put(new JSONObject().put("id", "a")).put(new JSONObject().put("id", "b")));
+        batch.put("server2", new JSONArray().put(new JSONObject().put("id", "c")));
+
+        AggregationServer.applyPut(batch, 10);
+
+        assertEquals(11, server.lamportClock.getTime());
+        assertEquals(3, AggregationServer.getData().length());
+        assertEquals("server2", server.weatherData.ownerOf("c"));
+        assertTrue(server.contentServerValue.containsKey("server1"));
+        assertTrue(server.contentServerValue.containsKey("server2"));
+    }
+
+    // Test that a streamed PUT body is parsed record by record and applied
+    @Test
+    public void testStreamingPutBody() throws IOException {
+        String body = "{\"server1\": [{\"id\": \"a\", \"air_temp\": 1.5}, {\"id\": \"b\"}], \"server2\": []}";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String[] lines = {"PUT /weather.json HTTP/1.1", "Content-Length: " + bytes.length, "Lamport-Clock: 5"};
+        // The bytes after the body belong to the next request and must not be consumed
+        ByteArrayInputStream in = new ByteArrayInputStream((body + "GET / HTTP/1.1").getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        AggregationServer.HandlingClient.handlePutRequest(in, out, lines, true);
+
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 200 OK"));
+        assertEquals(2, AggregationServer.getData().length());
+        assertEquals(1.5, AggregationServer.getById("a").getDouble("air_temp"));
+        assertEquals("GET / HTTP/1.1", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    // Test that a body larger than the configured maximum is rejected without being read
+    @Test
+    public void testPutBodyTooLarge() throws IOException {
+        String[] lines = {"PUT /weather.json HTTP/1.1", "Content-Length: " + (AggregationServer.maxBodySize + 1)};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        boolean keepAlive = AggregationServer.HandlingClient.handlePutRequest(new ByteArrayInputStream(new byte[0]), out, lines, true);
+
+        assertFalse(keepAlive);
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 413"));
+
+        // A small gzip body must not be able to expand past the limit either
+        long limit = AggregationServer.maxBodySize;
+        AggregationServer.maxBodySize = 10_000;
+        try {
+            byte[] bomb = Compression.encode(("[" + " ".repeat(1_000_000) + "]").getBytes(StandardCharsets.UTF_8), Compression.GZIP);
+            String[] gzipLines = {"PUT /weather.json HTTP/1.1", "Content-Length: " + bomb.length, "Content-Encoding: gzip"};
+            out.reset();
+            AggregationServer.HandlingClient.handlePutRequest(new ByteArrayInputStream(bomb), out, gzipLines, true);
+            assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 413"));
+        } finally {
+            AggregationServer.maxBodySize = limit;
+        }
+    }
+
+    // Test that two requests pipelined on one kept-alive socket are answered in order, whatever the header case
+    @Test
+    public void testPipelinedRequestsOnOneConnection() throws IOException {
+        try (java.net.ServerSocket listener = new java.net.ServerSocket(0);
+             Socket socket = new Socket("localhost", listener.getLocalPort())) {
+            new AggregationServer.HandlingClient(listener.accept()).start();
+            socket.setSoTimeout(5000);
+            byte[] body = "[{\"id\": \"a\", \"air_temp\": 1.5}]".getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            requests.writeBytes(("PUT /weather.json HTTP/1.1\r\ncontent-server-id: server1\r\ncontent-length: " + body.length
+                    + "\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            requests.writeBytes(body);
+            requests.writeBytes("GET /a HTTP/1.1\r\nConnection: keep-alive\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            requests.writeBytes("PUT /weather.json HTTP/1.1\r\nContent-Length: 12x\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().write(requests.toByteArray());
+
+            InputStream in = socket.getInputStream();
+            assertEquals(200, HttpResponse.read(in).getStatusCode());
+            HttpResponse get = HttpResponse.read(in);
+            assertEquals(200, get.getStatusCode());
+            assertEquals(1.5, new JSONObject(get.getBodyText()).getDouble("air_temp"));
+            HttpResponse rejected = HttpResponse.read(in);
+            assertEquals(400, rejected.getStatusCode());
+            assertEquals("close", rejected.getHeader("Connection"));
+            assertNull(HttpResponse.read(in));
+        }
+    }
+
+    // Test that the NIO server answers PUT and GET, and that a bad Content-Length only costs its own connection
+    @Test
+    public void testNioServerPutAndGet() throws Exception {
+        NioServer nio = new NioServer(0, 2);
+        Thread selector = new Thread(() -> {
+            try {
+                nio.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        selector.setDaemon(true);
+        selector.start();
+        try {
+            for (String length : new String[]{"abc", "-1"}) {
+                try (Socket socket = new Socket("localhost", nio.getPort())) {
+                    socket.setSoTimeout(5000);
+                    socket.getOutputStream().write(("PUT /weather.json HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    assertEquals(400, HttpResponse.read(socket.getInputStream()).getStatusCode());
+                }
+            }
+            try (Socket socket = new Socket("localhost", nio.getPort())) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(new byte[AggregationServer.MAX_HEADER_SIZE + 1]);
+                assertEquals(431, HttpResponse.read(socket.getInputStream()).getStatusCode());
+            }
+
+            byte[] body = "[{\"id\": \"a\", \"air_temp\": 1.5}]".getBytes(StandardCharsets.UTF_8);
+            try (Socket socket = new Socket("localhost", nio.getPort())) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(("PUT /weather.json HTTP/1.1\r\nContent-Server-ID: server1\r\nContent-Length: "
+                        + body.length + "\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                socket.getOutputStream().write(body);
+                assertEquals(200, HttpResponse.read(socket.getInputStream()).getStatusCode());
+                socket.getOutputStream().write("GET /a HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                HttpResponse get = HttpResponse.read(socket.getInputStream());
+                assertEquals(200, get.getStatusCode());
+                assertEquals(1.5, new JSONObject(get.getBodyText()).getDouble("air_temp"));
+            }
+
+            // Uploads that stall halfway, more of them than there are workers, must not hold up other requests
+            List<Socket> stalled = new ArrayList<>();
+            try {
+                for (int i = 0; i < 4; i++) {
+                    Socket socket = new Socket("localhost", nio.getPort());
+                    stalled.add(socket);
+                    socket.getOutputStream().write(("PUT /weather.json HTTP/1.1\r\nContent-Server-ID: slow\r\nContent-Length: 1000000\r\n\r\n[")
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                try (Socket socket = new Socket("localhost", nio.getPort())) {
+                    socket.setSoTimeout(5000);
+                    socket.getOutputStream().write("GET /a HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                    assertEquals(200, HttpResponse.read(socket.getInputStream()).getStatusCode());
+                }
+            } finally {
+                for (Socket socket : stalled) {
+                    socket.close();
+                }
+            }
+
+            // A body far larger than what the server buffers per connection, pipelined with a GET
+            JSONArray many = new JSONArray();
+            for (int i = 0; i < 5000; i++) {
+                many.put(new JSONObject().put("id", "s" + i).put("air_temp", i));
+            }
+            byte[] large = many.toString().getBytes(StandardCharsets.UTF_8);
+            try (Socket socket = new Socket("localhost", nio.getPort())) {
+                socket.setSoTimeout(5000);
+                ByteArrayOutputStream requests = new ByteArrayOutputStream();
+                requests.writeBytes(("PUT /weather.json HTTP/1.1\r\nContent-Server-ID: server2\r\nContent-Length: "
+                        + large.length + "\r\nConnection: keep-alive\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                requests.writeBytes(large);
+                requests.writeBytes("GET /s4999 HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                socket.getOutputStream().write(requests.toByteArray());
+                assertEquals(200, HttpResponse.read(socket.getInputStream()).getStatusCode());
+                HttpResponse get = HttpResponse.read(socket.getInputStream());
+                assertEquals(4999, new JSONObject(get.getBodyText()).getInt("air_temp"));
+            }
+            assertEquals(5001, server.weatherData.size());
+        } finally {
+            nio.stop();
+            selector.join(5000);
+        }
+    }
+
+    // Test that the snapshot is compressed once and the negotiated coding honours q=0
+    @Test
+    public void testCompressedSnapshotIsCached() throws IOException {
+        WeatherSnapshot snapshot = AggregationServer.getSnapshot();
+
+        byte[] gzip = snapshot.getBody(Compression.GZIP);
+        assertSame(gzip, snapshot.getBody(Compression.GZIP));
+        assertArrayEquals(snapshot.getBody(),
+                Compression.decode(new ByteArrayInputStream(gzip), Compression.GZIP).readAllBytes());
+        assertEquals(Compression.DEFLATE, Compression.negotiate("gzip;q=0, deflate"));
+        assertNull(Compression.negotiate("br"));
+    }
+
+    // Test that a delta read returns only the stations changed or expired since the given time
+    @Test
+    public void testDeltaSinceLamportTime() {
+        AggregationServer.applyPut(new JSONArray().put(new JSONObject().put("id", "a")), "server1", 0);
+        long since = server.lamportClock.getTime();
+        AggregationServer.applyPut(new JSONArray().put(new JSONObject().put("id", "b").put("air_temp", 1)), "server2", 0);
+        AggregationServer.applyPut(new JSONArray().put(new JSONObject().put("id", "b").put("air_temp", 2)), "server2", 0);
+        AggregationServer.expire("server1", server.contentServerValue.get("server1"));
+
+        JSONObject delta = server.changeLog.since(since);
+
+        assertFalse(delta.getBoolean("full"));
+        assertEquals(1, delta.getJSONArray("updated").length());
+        assertEquals(2, delta.getJSONArray("updated").getJSONObject(0).getInt("air_temp"));
+        assertEquals("a", delta.getJSONArray("expired").getString(0));
+        assertEquals(server.lamportClock.getTime(), delta.getLong("until"));
+        assertEquals(0, server.changeLog.since(delta.getLong("until")).getJSONArray("updated").length());
+    }
+
+    // Test that a time which already left the change log falls back to a full read
+    @Test
+    public void testDeltaFallsBackToFullRead() throws IOException {
+        for (int i = 0; i < 6; i++) {
+            AggregationServer.applyPut(new JSONArray().put(new JSONObject().put("id", "s" + i)), "server1", 0);
+        }
+        assertNull(server.changeLog.since(0));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AggregationServer.HandlingClient.handleRequest(new String[]{"GET /?since=0 HTTP/1.1"},
+                new ByteArrayInputStream(new byte[0]), out);
+
+        String response = out.toString(StandardCharsets.UTF_8);
+        JSONObject body = new JSONObject(response.substring(response.indexOf("\r\n\r\n") + 4));
+        assertTrue(body.getBoolean("full"));
+        assertEquals(6, body.getJSONArray("updated").length());
+    }
+
+    // Test that a subscriber receives every change committed after the position in its response head
+    @Test
+    public void testSubscriberReceivesEvents() throws IOException {
+        SubscriptionHub hub = new SubscriptionHub();
+        hub.start();
+        server.subscriptionHub = hub;
+        try (ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+             Socket subscriber = new Socket("localhost", listener.socket().getLocalPort())) {
+            AggregationServer.applyPut(new JSONArray().put(new JSONObject().put("id", "before")), "server0", 0);
+            AggregationServer.HandlingClient.startEventStream(listener.accept());
+            // Committed right after joining, before the hub thread has registered the subscriber
+            AggregationServer.applyPut(new JSONArray().put(new JSONObject().put("id", "a")), "server1", 0);
+            AggregationServer.expire("server1", server.contentServerValue.get("server1"));
+            subscriber.setSoTimeout(5000);
+            BufferedReader events = new BufferedReader(new InputStreamReader(subscriber.getInputStream(), StandardCharsets.UTF_8));
+
+            assertEquals("HTTP/1.1 200 OK", events.readLine());
+            long start = -1;
+            for (String line = events.readLine(); !line.isEmpty(); line = events.readLine()) {
+                if (line.startsWith("Lamport-Clock: ")) {
+                    start = Long.parseLong(line.substring("Lamport-Clock: ".length()));
+                }
+            }
+            assertEquals(2, start);
+            assertEquals("id: 3", events.readLine());
+            assertEquals("event: update", events.readLine());
+            assertEquals("data: {\"id\":\"a\"}", events.readLine());
+            assertEquals("", events.readLine());
+            assertEquals("id: 4", events.readLine());
+            assertEquals("event: expire", events.readLine());
+            assertEquals(1, hub.getSubscriberCount());
+        }
+    }
+
+    // Test that filtered queries use the indexes, follow replacements and project fields
+    @Test
+    public void testFilteredQuery() {
+        server.weatherData.put(new JSONObject().put("id", "a").put("state", "SA").put("lat", -34.9).put("lon", 138.6).put("air_temp", 13.3));
+        server.weatherData.put(new JSONObject().put("id", "b").put("state", "SA").put("lat", -12.4).put("lon", 130.8).put("air_temp", 31.0));
+        server.weatherData.put(new JSONObject().put("id", "c").put("state", "VIC").put("lat", -37.8).put("lon", 145.0).put("air_temp", 9.0));
+
+        assertEquals(2, server.weatherData.query(StationQuery.parse("state=SA")).length());
+        assertEquals(2, server.weatherData.query(StationQuery.parse("bbox=-40,135,-30,150")).length());
+        assertEquals(1, server.weatherData.query(StationQuery.parse("state=SA&air_temp=..20")).length());
+
+        // The replaced record must leave every index it was in
+        server.weatherData.put(new JSONObject().put("id", "a").put("state", "NT").put("air_temp", 25.0));
+        assertEquals(1, server.weatherData.query(StationQuery.parse("state=SA")).length());
+        JSONArray warm = server.weatherData.query(StationQuery.parse("air_temp=20..30&fields=id"));
+        assertEquals(1, warm.length());
+        assertEquals("{\"id\":\"a\"}", warm.getJSONObject(0).toString());
+
+        server.weatherData.remove("c");
+        assertEquals(0, server.weatherData.query(StationQuery.parse("bbox=-40,140,-35,150")).length());
+        assertThrows(IllegalArgumentException.class, () -> StationQuery.parse("colour=red"));
+        assertThrows(IllegalArgumentException.class, () -> StationQuery.parse("air_temp=NaN"));
+
+        // A reversed range is a bad request, not an error escaping the handler
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertDoesNotThrow(() -> AggregationServer.HandlingClient.handleRequest(new String[]{"GET /?air_temp=30..10 HTTP/1.1"},
+                null, out));
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 400"));
+    }
+
+    // Test that typed records keep every field, including ones outside the schema, through a round trip
+    @Test
+    public void testWeatherRecordRoundTrip() {
+        JSONObject json = new JSONObject().put("id", "IDS60901").put("state", "SA").put("lat", -34.9)
+                .put("rel_hum", 60.0).put("cloud", "Partly cloudy").put("uv_index", 3).put("air_temp", "n/a");
+
+        WeatherRecord record = WeatherRecord.fromJSON(json);
+
+        assertTrue(json.similar(record.toJSON()));
+        assertTrue(json.similar(new JSONObject(record.toString())));
+        assertTrue(record.toString().contains("\"rel_hum\":60,"));
+        assertEquals(-34.9, record.getLat());
+        assertTrue(Double.isNaN(record.getNumber("air_temp")));
+        assertSame(record.getState(), WeatherRecord.fromJSON(new JSONObject().put("id", "x").put("state", new String("SA"))).getState());
+    }
+
+    // Test that a PUT in the binary encoding is applied and can be read back in either encoding
+    @Test
+    public void testBinaryPutAndGet() throws IOException {
+        JSONObject json = new JSONObject().put("id", "a").put("state", "SA").put("air_temp", 13.3).put("uv_index", 3);
+        byte[] body = BinaryRecords.encode(List.of(WeatherRecord.fromJSON(json)));
+        String[] lines = {"PUT /weather.json HTTP/1.1", "Content-Type: " + BinaryRecords.CONTENT_TYPE,
+                "Content-Length: " + body.length, "Content-Server-ID: server1"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        AggregationServer.HandlingClient.handlePutRequest(new ByteArrayInputStream(body), out, lines, true);
+
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 200 OK"));
+        assertTrue(json.similar(AggregationServer.getById("a")));
+        assertEquals("server1", server.weatherData.ownerOf("a"));
+        byte[] snapshot = AggregationServer.getSnapshot().getBinaryBody();
+        assertTrue(json.similar(BinaryRecords.decode(snapshot).get(0).toJSON()));
+        assertTrue(BinaryRecords.accepts(BinaryRecords.CONTENT_TYPE + ", application/json;q=0.5"));
+        assertFalse(BinaryRecords.accepts(BinaryRecords.CONTENT_TYPE + ";q=0"));
+
+        // A truncated body is rejected instead of half applied
+        out.reset();
+        String[] truncated = {"PUT /weather.json HTTP/1.1", "Content-Type: " + BinaryRecords.CONTENT_TYPE,
+                "Content-Length: " + (body.length - 3)};
+        AggregationServer.HandlingClient.handlePutRequest(new ByteArrayInputStream(body, 0, body.length - 3), out, truncated, true);
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 400"));
+    }
+
+    // Test that history keeps a bounded ring of raw readings and rolls them into minute and hour buckets
+    @Test
+    public void testStationHistory() {
+        StationHistory history = new StationHistory(3, 2, 2);
+        long minute = 60_000;
+        for (int i = 0; i < 5; i++) {
+            history.record(WeatherRecord.fromJSON(new JSONObject().put("id", "a").put("air_temp", 10 + i)), 10 * minute + i * 20_000);
+        }
+
+        JSONArray raw = history.points("a", "raw", null);
+        assertEquals(3, raw.length());
+        assertEquals(12, raw.getJSONObject(0).getInt("air_temp"));
+        JSONArray minutes = history.points("a", "minute", List.of("air_temp"));
+        assertEquals(2, minutes.length());
+        JSONObject first = minutes.getJSONObject(0).getJSONObject("air_temp");
+        assertEquals(10, first.getDouble("min"));
+        assertEquals(12, first.getDouble("max"));
+        assertEquals(11, first.getDouble("avg"));
+        assertEquals(1, history.points("a", "hour", null).length());
+        assertEquals(5, history.points("a", "hour", null).getJSONObject(0).getJSONObject("air_temp").getInt("count"));
+
+        // A minute bucket two minutes later replaces the oldest of the two slots
+        history.record(WeatherRecord.fromJSON(new JSONObject().put("id", "a").put("air_temp", 20)), 12 * minute);
+        assertEquals(11 * minute, history.points("a", "minute", null).getJSONObject(0).getLong("time"));
+
+        history.remove(List.of("a"));
+        assertNull(history.points("a", "raw", null));
+        history.record(WeatherRecord.fromJSON(new JSONObject().put("id", "b")), 0);
+        assertThrows(IllegalArgumentException.class, () -> history.points("b", "week", null));
+    }
+
+    // Test that adding a node to the shard ring only moves content servers onto the new node, about 1/N of them
+    @Test
+    public void testHashRingMovesOnlyToNewNode() {
+        HashRing ring = new HashRing(List.of("a:1", "b:2", "c:3"));
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < 4000; i++) {
+            before.put("CS" + i, ring.ownerOf("CS" + i));
+        }
+        ring.add("d:4");
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String owner = ring.ownerOf(entry.getKey());
+            if (!owner.equals(entry.getValue())) {
+                assertEquals("d:4", owner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 600 && moved < 1400, "moved " + moved);
+
+        ring.remove("d:4");
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            assertEquals(entry.getValue(), ring.ownerOf(entry.getKey()));
+        }
+    }
+
+    // Test that a PUT forwards another node's records in bounded batches, that GET / gathers that
+    // node's stations, and that an empty membership is rejected
+    @Test
+    public void testShardedPutForwardsAndGetGathers() throws Exception {
+        try (java.net.ServerSocket other = new java.net.ServerSocket(0)) {
+            // This node is never connected to, the other one is a stub answering like a shard would
+            String self = "localhost:1";
+            server.shardRouter = new ShardRouter(self, List.of(self, "localhost:" + other.getLocalPort()));
+            List<Integer> forwardedBatches = java.util.Collections.synchronizedList(new ArrayList<>());
+            Thread node = new Thread(() -> {
+                while (true) {
+                    try (Socket socket = other.accept()) {
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        String requestLine = HttpResponse.readLine(in);
+                        int length = 0;
+                        for (String line = HttpResponse.readLine(in); !line.isEmpty(); line = HttpResponse.readLine(in)) {
+                            if (line.startsWith("Content-Length: ")) {
+                                length = Integer.parseInt(line.substring("Content-Length: ".length()));
+                            }
+                        }
+                        byte[] body = in.readNBytes(length);
+                        byte[] answer = new byte[0];
+                        if (requestLine.startsWith("PUT")) {
+                            forwardedBatches.add(BinaryRecords.decode(body).size());
+                        } else {
+                            answer = BinaryRecords.encode(List.of(WeatherRecord.fromJSON(new JSONObject().put("id", "remote"))));
+                        }
+                        socket.getOutputStream().write(("HTTP/1.1 200 OK\r\nContent-Length: " + answer.length + "\r\n\r\n")
+                                .getBytes(StandardCharsets.UTF_8));
+                        socket.getOutputStream().write(answer);
+                    } catch (IOException e) {
+                        return; // Listener closed
+                    }
+                }
+            });
+            node.setDaemon(true);
+            node.start();
+
+            String localId = null;
+            String remoteId = null;
+            for (int i = 0; localId == null || remoteId == null; i++) {
+                if (server.shardRouter.isLocal("cs" + i)) {
+                    localId = "cs" + i;
+                } else {
+                    remoteId = "cs" + i;
+                }
+            }
+            JSONArray remoteRecords = new JSONArray();
+            for (int i = 0; i < 2500; i++) {
+                remoteRecords.put(new JSONObject().put("id", "r" + i));
+            }
+            JSONObject batch = new JSONObject().put(localId, new JSONArray().put(new JSONObject().put("id", "local")))
+                    .put(remoteId, remoteRecords);
+            byte[] body = batch.toString().getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AggregationServer.HandlingClient.handlePutRequest(new ByteArrayInputStream(body), out,
+                    new String[]{"PUT /weather.json HTTP/1.1", "Content-Length: " + body.length}, true);
+
+            assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 200 OK"));
+            assertEquals(List.of(1000, 1000, 500), forwardedBatches);
+            assertEquals(1, server.weatherData.size());
+
+            out.reset();
+            AggregationServer.HandlingClient.handleRequest(new String[]{"GET / HTTP/1.1"}, null, out);
+            HttpResponse gathered = HttpResponse.read(new ByteArrayInputStream(out.toByteArray()));
+            JSONArray stations = new JSONArray(gathered.getBodyText());
+            assertEquals(2, stations.length());
+            assertEquals("local", stations.getJSONObject(0).getString("id"));
+            assertEquals("remote", stations.getJSONObject(1).getString("id"));
+
+            out.reset();
+            byte[] empty = "[]".getBytes(StandardCharsets.UTF_8);
+            AggregationServer.HandlingClient.handleRequest(new String[]{"PUT /cluster HTTP/1.1", "Content-Length: " + empty.length},
+                    new ByteArrayInputStream(empty), out);
+            assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 400"));
+            assertEquals(2, server.shardRouter.nodes().size());
+        }
+    }
+
+    // Test that replicas apply the same batches in the same order, keep accepting writes with one replica down,
+    // and that a restarted replica resumes after the slot it recovered instead of applying everything again
+    @Test
+    public void testPaxosLogReplicatesInOrder() throws Exception {
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            try (java.net.ServerSocket probe = new java.net.ServerSocket(0)) {
+                addresses.add("localhost:" + probe.getLocalPort());
+            }
+        }
+        List<List<String>> applied = new ArrayList<>();
+        List<PaxosLog> replicas = new ArrayList<>();
+        for (int i = 0; i < addresses.size(); i++) {
+            List<String> log = java.util.Collections.synchronizedList(new ArrayList<>());
+            applied.add(log);
+            PaxosLog replica = new PaxosLog(addresses, i, (batch, clock) -> {
+                batch.forEach((cs, records) -> records.forEach(record -> log.add(cs + "/" + record.getId())));
+                return 0;
+            });
+            replica.start();
+            replicas.add(replica);
+        }
+        try {
+            // Two replicas propose at the same time, so some slots are contended
+            Thread[] writers = new Thread[2];
+            for (int w = 0; w < writers.length; w++) {
+                int writer = w;
+                writers[w] = new Thread(() -> {
+                    for (int i = 0; i < 20; i++) {
+                        try {
+                            replicas.get(writer).replicate(Map.of("cs" + writer,
+                                    List.of(WeatherRecord.fromJSON(new JSONObject().put("id", "s" + i)))), i);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+                writers[w].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            // DECIDE reaches the replicas that did not propose asynchronously
+            while (applied.stream().anyMatch(log -> log.size() < 40) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(40, applied.get(0).size());
+            assertEquals(applied.get(0), applied.get(1));
+            assertEquals(applied.get(0), applied.get(2));
+
+            long appliedSlot = replicas.get(2).getAppliedSlot();
+            replicas.get(2).stop();
+            replicas.get(0).replicate(Map.of("cs0", List.of(WeatherRecord.fromJSON(new JSONObject().put("id", "late")))), 0);
+            assertEquals("cs0/late", applied.get(0).get(40));
+
+            List<String> restartedLog = java.util.Collections.synchronizedList(new ArrayList<>());
+            PaxosLog restarted = new PaxosLog(addresses, 2, appliedSlot, Map.of(), null, (batch, clock) -> {
+                batch.forEach((cs, records) -> records.forEach(record -> restartedLog.add(cs + "/" + record.getId())));
+                return 0;
+            });
+            restarted.start();
+            replicas.set(2, restarted);
+            replicas.get(0).replicate(Map.of("cs0", List.of(WeatherRecord.fromJSON(new JSONObject().put("id", "later")))), 0);
+            deadline = System.currentTimeMillis() + 5000;
+            // The DECIDE of the new slot makes the restarted replica fill the one it missed
+            while (restartedLog.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(List.of("cs0/late", "cs0/later"), restartedLog);
+        } finally {
+            for (PaxosLog replica : replicas) {
+                replica.stop();
+            }
+        }
+    }
+
+    // Test that an acceptor restarted between the two Paxos phases keeps its promise and its accepted value,
+    // whether they come back from the log tail or from a snapshot
+    @Test
+    public void testPaxosAcceptorSurvivesRestartBetweenPhases(@TempDir Path directory) throws IOException {
+        List<String> addresses = List.of("localhost:1", "localhost:2", "localhost:3");
+        WriteAheadLog log = new WriteAheadLog(directory);
+        log.open();
+        PaxosLog acceptor = restartAcceptor(addresses, log);
+        assertEquals("PROMISE 0 513 -1 -", acceptor.handle("PREPARE 0 513"));
+
+        log = new WriteAheadLog(directory);
+        log.open();
+        acceptor = restartAcceptor(addresses, log);
+        assertEquals("REJECTED 0 513", acceptor.handle("ACCEPT 0 257 first"));
+        assertEquals("ACCEPTED 0 513", acceptor.handle("ACCEPT 0 513 second"));
+        log.snapshot();
+
+        log = new WriteAheadLog(directory);
+        log.open();
+        acceptor = restartAcceptor(addresses, log);
+        assertEquals("REJECTED 0 513", acceptor.handle("PREPARE 0 257"));
+        assertEquals("PROMISE 0 770 513 second", acceptor.handle("PREPARE 0 770"));
+
+        // Once the slot is applied its vote is no longer needed
+        log.awaitDurable(log.appendSlot(0));
+        log = new WriteAheadLog(directory);
+        log.open();
+        assertTrue(log.getRecoveredVotes().isEmpty());
+        assertEquals("TRIMMED 0", restartAcceptor(addresses, log).handle("PREPARE 0 1026"));
+    }
+
+    private static PaxosLog restartAcceptor(List<String> addresses, WriteAheadLog log) {
+        return new PaxosLog(addresses, 1, log.getReplicatedSlot(), log.getRecoveredVotes(), new PaxosLog.AcceptorLog() {
+            @Override
+            public long append(long slot, PaxosLog.Vote vote) {
+                return log.appendVote(slot, vote);
+            }
+
+            @Override
+            public void awaitDurable(long sequence) throws IOException {
+                log.awaitDurable(sequence);
+            }
+        }, (batch, clock) -> 0);
+    }
+
+    // Test that a heartbeat keeps a known content server alive without touching its stations or the cached snapshot,
+    // and that one with a malformed Lamport-Clock is rejected
+    @Test
+    public void testHeartbeat() throws Exception {
+        AggregationServer.applyPut(new JSONArray().put(new JSONObject().put("id", "a")), "server1", 0);
+        long pushed = server.contentServerValue.get("server1");
+        WeatherSnapshot before = AggregationServer.getSnapshot();
+        Thread.sleep(5);
+
+        assertTrue(AggregationServer.heartbeat("server1", 0));
+        assertTrue(server.contentServerValue.get("server1") > pushed);
+        assertSame(before, AggregationServer.getSnapshot());
+        assertFalse(AggregationServer.heartbeat("server2", 0));
+        assertFalse(server.contentServerValue.containsKey("server2"));
+
+        for (String clock : new String[]{"7", "soon"}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            AggregationServer.HandlingClient.handleRequest(new String[]{"PUT /heartbeat HTTP/1.1", "Content-Length: 0",
+                    "Content-Server-ID: server1", "Lamport-Clock: " + clock}, new ByteArrayInputStream(new byte[0]), out);
+            assertTrue(out.toString(StandardCharsets.UTF_8).startsWith(clock.equals("7") ? "HTTP/1.1 200" : "HTTP/1.1 400"));
+        }
+    }
+
+    // Test that GET /{id} answers a matching If-None-Match with 304 and that cached entries survive on disk
+    @Test
+    public void testConditionalGetByIdAndResponseCache(@TempDir Path directory) throws IOException {
+        AggregationServer.applyPut(new JSONArray().put(new JSONObject().put("id", "a").put("air_temp", 1.5)), "server1", 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AggregationServer.HandlingClient.handleRequest(new String[]{"GET /a HTTP/1.1"}, null, out);
+        HttpResponse first = HttpResponse.read(new ByteArrayInputStream(out.toByteArray()));
+        String etag = first.getHeader("ETag");
+        assertNotNull(etag);
+
+        out.reset();
+        AggregationServer.HandlingClient.handleRequest(new String[]{"GET /a HTTP/1.1", "If-None-Match: " + etag}, null, out);
+        HttpResponse unchanged = HttpResponse.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(304, unchanged.getStatusCode());
+        assertEquals(0, unchanged.getBody().length);
+
+        new ResponseCache(directory).put("localhost:4567", "/a", new ResponseCache.Entry(etag, 7, "application/json", first.getBody()));
+        ResponseCache.Entry cached = new ResponseCache(directory).get("localhost:4567", "/a");
+        assertEquals(etag, cached.getETag());
+        assertEquals(7, cached.getLamportClock());
+        assertArrayEquals(first.getBody(), cached.getBody());
+        assertNull(new ResponseCache(directory).get("localhost:4567", "/b"));
+        // Another server's tags mean nothing here
+        assertNull(new ResponseCache(directory).get("localhost:4568", "/a"));
+
+        AggregationServer.applyPut(new JSONArray().put(new JSONObject().put("id", "a").put("air_temp", 2.5)), "server1", 1);
+        out.reset();
+        AggregationServer.HandlingClient.handleRequest(new String[]{"GET /a HTTP/1.1", "If-None-Match: " + etag}, null, out);
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 200 OK"));
+    }
+
+    // Test that bulk chunks start on record boundaries and parse every value. Unlike the line parser, which
+    // rejects "15/04:00pm", a value keeps everything after the first colon.
+    @Test
+    public void testBulkLoaderChunksAndParses(@TempDir Path directory) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            text.append("id: IDS").append(i).append("\r\nstate: SA\r\nlocal_date_time: 15/04:00pm\r\n")
+                    .append("air_temp: -").append(i).append(".5\r\npress: 1,023.9\r\nbogus: 1\r\n\r\n");
+        }
+        Path file = directory.resolve("bulk.txt");
+        java.nio.file.Files.writeString(file, text.toString());
+
+        List<WeatherRecord> records = new ArrayList<>();
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file)) {
+            List<long[]> chunks = BulkLoader.split(channel, 300);
+            assertTrue(chunks.size() > 5);
+            for (long[] chunk : chunks) {
+                BulkLoader.Chunk parsed = BulkLoader.parse(channel, chunk[0], chunk[1]);
+                records.addAll(BinaryRecords.decode(parsed.body));
+            }
+        }
+        assertEquals(50, records.size());
+        for (int i = 0; i < 50; i++) {
+            WeatherRecord record = records.get(i);
+            assertEquals("IDS" + i, record.getId());
+            assertEquals(Double.parseDouble("-" + i + ".5"), record.getNumber("air_temp"));
+            assertEquals(1023.9, record.getNumber("press"));
+            assertEquals("15/04:00pm", record.get("local_date_time"));
+        }
+        byte[] number = "0.1".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0.1, BulkLoader.parseNumber(number, 0, number.length));
+    }
+
+    // Test that concurrent ticks are never lost, that the hybrid clock follows the wall clock without
+    // ever going backwards, and that received times which would wrap the clock or run too far ahead are refused
+    @Test
+    public void testLamportAndHybridLogicalClocks() throws InterruptedException, IOException {
+        LamportClock lamport = new LamportClock();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    lamport.increaseTime();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, lamport.getTime());
+        lamport.updateTime(Integer.MAX_VALUE + 10L);
+        assertEquals(Integer.MAX_VALUE + 11L, lamport.getTime());
+        // Merging Long.MAX_VALUE would wrap the clock negative
+        assertTrue(lamport.accepts(Integer.MAX_VALUE + 10L));
+        assertFalse(lamport.accepts(Long.MAX_VALUE));
+        assertFalse(lamport.accepts(-1));
+
+        long[] wall = {1_000};
+        HybridLogicalClock hybrid = new HybridLogicalClock(() -> wall[0]);
+        hybrid.increaseTime();
+        assertEquals(1_000L << HybridLogicalClock.LOGICAL_BITS, hybrid.getTime());
+        hybrid.increaseTime();
+        assertEquals((1_000L << HybridLogicalClock.LOGICAL_BITS) + 1, hybrid.getTime());
+        wall[0] = 900; // Stepped back
+        hybrid.increaseTime();
+        assertEquals((1_000L << HybridLogicalClock.LOGICAL_BITS) + 2, hybrid.getTime());
+        assertEquals(1_000, hybrid.wallTime());
+        long ahead = 1_500L << HybridLogicalClock.LOGICAL_BITS;
+        hybrid.updateTime(ahead);
+        assertEquals(ahead + 1, hybrid.getTime());
+        assertEquals(1_500, HybridLogicalClock.wallTime(hybrid.getTime()));
+        wall[0] = 2_000;
+        hybrid.updateTime(5);
+        assertEquals(2_000L << HybridLogicalClock.LOGICAL_BITS, hybrid.getTime());
+        // A timestamp from a machine whose wall clock runs too far ahead is refused
+        assertTrue(hybrid.accepts((2_000L + HybridLogicalClock.MAX_DRIFT) << HybridLogicalClock.LOGICAL_BITS));
+        assertFalse(hybrid.accepts((2_001L + HybridLogicalClock.MAX_DRIFT) << HybridLogicalClock.LOGICAL_BITS));
+        assertTrue(hybrid.accepts(5));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AggregationServer.HandlingClient.handleRequest(new String[]{"PUT /weather.json HTTP/1.1", "Content-Length: 2",
+                "Content-Server-ID: server1", "Lamport-Clock: " + Long.MAX_VALUE}, new ByteArrayInputStream("[]".getBytes()), out);
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("HTTP/1.1 400"));
+        assertTrue(server.lamportClock.getTime() >= 0);
+    }
+
+    // Test that GET /metrics reports requests, parse times and store size in the Prometheus text
+    // format, and that the request log prints one in every sampleEvery messages
+    @Test
+    public void testMetricsEndpointAndSampledLog() throws Exception {
+        byte[] body = "[{\"id\": \"a\"}, {\"id\": \"b\"}]".getBytes(StandardCharsets.UTF_8);
+        String[] put = {"PUT /weather.json HTTP/1.1", "Content-Length: " + body.length, "Content-Server-ID: server1"};
+        AggregationServer.HandlingClient.handleRequest(put, new ByteArrayInputStream(body), new ByteArrayOutputStream());
+        AggregationServer.HandlingClient.handleRequest(new String[]{"GET /missing HTTP/1.1"}, null, new ByteArrayOutputStream());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AggregationServer.HandlingClient.handleRequest(new String[]{"GET /metrics HTTP/1.1"}, null, out);
+        HttpResponse response = HttpResponse.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(Metrics.CONTENT_TYPE, response.getHeader("Content-Type"));
+        Map<String, Double> samples = new HashMap<>();
+        for (String line : response.getBodyText().split("\n")) {
+            if (!line.startsWith("#")) {
+                samples.put(line.substring(0, line.lastIndexOf(' ')), Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1)));
+            }
+        }
+        assertTrue(samples.get("weather_requests_total{method=\"PUT\",status=\"200\"}") >= 1);
+        assertTrue(samples.get("weather_requests_total{method=\"GET\",status=\"404\"}") >= 1);
+        assertEquals(samples.get("weather_request_duration_seconds_count{method=\"PUT\"}"),
+                samples.get("weather_request_duration_seconds_bucket{method=\"PUT\",le=\"+Inf\"}"));
+        assertTrue(samples.get("weather_put_parsed_records_total") >= 2);
+        assertTrue(samples.get("weather_lock_wait_seconds_count{lock=\"read\"}") >= 1);
+        assertEquals(samples.get("weather_lock_wait_seconds_count{lock=\"read\"}"),
+                samples.get("weather_lock_wait_seconds_count{lock=\"stripe\"}"));
+        assertEquals(2, samples.get("weather_stations"));
+        assertEquals(0, samples.get("weather_wal_syncs_total")); // Persistence is off
+        assertEquals(server.lamportClock.getTime(), samples.get("weather_lamport_clock").longValue());
+
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        AsyncLogger log = new AsyncLogger(new PrintStream(printed, true, StandardCharsets.UTF_8), 16, 3);
+        log.start();
+        for (int i = 0; i < 7; i++) {
+            int event = i;
+            log.sample(() -> "event " + event);
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        while (printed.toString(StandardCharsets.UTF_8).lines().count() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        log.stop();
+        assertEquals(List.of("event 0 (1 in 3 sampled)", "event 3 (1 in 3 sampled)", "event 6 (1 in 3 sampled)"),
+                printed.toString(StandardCharsets.UTF_8).lines().collect(java.util.stream.Collectors.toList()));
+    }
+
+    // Percentiles stay within 0.1% of the exact values and merging adds the counts
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for (long micros = 1; micros <= 100_000; micros++) {
+            (micros % 2 == 0 ? first : second).record(micros);
+        }
+        first.add(second);
+
+        assertEquals(100_000, first.count());
+        assertEquals(100_000, first.max());
+        assertEquals(50_000.5, first.mean(), 0.001);
+        assertEquals(1, first.percentile(0));
+        assertEquals(50_000, first.percentile(50), 50);
+        assertEquals(99_000, first.percentile(99), 99);
+        assertEquals(99_900, first.percentile(99.9), 100);
+        assertEquals(100_000, first.percentile(100));
+    }
+
     // Test getById() with a valid ID
     @Test
     public void testGetByIdValid() {
@@ -87,6 +1016,24 @@ public class AggregationServerTest {
         assertNull(result);
     }
 
+    // Test that pushing a station again replaces its previous record
+    @Test
+    public void testPutReplacesExistingStation() {
+        JSONObject first = new JSONObject();
+        first.put("id", "server1");
+        first.put("temperature", 25);
+        JSONObject second = new JSONObject();
+        second.put("id", "server1");
+        second.put("temperature", 30);
+        server.weatherData.put(first);
+        server.weatherData.put(second);
+        server.contentServerValue.put("server1", System.currentTimeMillis());
+
+        JSONArray result = AggregationServer.getData();
+
+        assertEquals(1, result.length());
+        assertEquals(30, AggregationServer.getById("server1").getInt("temperature"));
+    }
 
     // Test handling GET request and retrieving weather data
     @Test
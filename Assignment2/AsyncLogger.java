@@ -0,0 +1,77 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Request logging off the request path: handler threads only put a message on a bounded queue and a
+// background thread does the printing. Per-request messages are sampled, one in sampleEvery, and
+// built only when sampled. When the printer falls behind, messages are dropped and counted rather
+// than making handlers wait.
+public class AsyncLogger {
+
+    private final PrintStream out;
+    private final BlockingQueue<String> queue;
+    private final int sampleEvery;
+    private final AtomicLong events = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private Thread printer;
+
+    public AsyncLogger(PrintStream out, int capacity, int sampleEvery) {
+        this.out = out;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sampleEvery = Math.max(1, sampleEvery);
+    }
+
+    public void start() {
+        printer = new Thread(this::print, "request-log");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    public void stop() {
+        if (printer != null) {
+            printer.interrupt();
+        }
+    }
+
+    public void log(String message) {
+        if (!queue.offer(message)) {
+            dropped.increment();
+        }
+    }
+
+    // Logs one in sampleEvery of the calls; the message is not built for the others
+    public void sample(Supplier<String> message) {
+        if (events.getAndIncrement() % sampleEvery == 0) {
+            log(sampleEvery == 1 ? message.get() : message.get() + " (1 in " + sampleEvery + " sampled)");
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void print() {
+        List<String> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                // One write and flush per batch instead of one per line
+                StringBuilder text = new StringBuilder();
+                for (String message : batch) {
+                    text.append(message).append(System.lineSeparator());
+                }
+                out.print(text);
+                out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
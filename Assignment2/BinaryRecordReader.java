@@ -0,0 +1,61 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+// Pull reader for bodies in the BinaryRecords encoding. Each record is read into a reused
+// buffer and decoded straight into a WeatherRecord using reused scratch arrays, so apart from
+// the record itself and its non-interned strings nothing is allocated per record. Malformed input throws IllegalArgumentException,
+// a body cut short throws EOFException.
+public class BinaryRecordReader implements RecordReader {
+
+    private final DataInputStream in;
+    private final String defaultContentServerId;
+    private String contentServerId;
+    private long remaining; // Records left in the current group
+    private byte[] buffer = new byte[512];
+    private final String[] text = WeatherRecord.textScratch();
+    private final double[] numbers = WeatherRecord.numberScratch();
+    private WeatherRecord record;
+
+    public BinaryRecordReader(InputStream body, String defaultContentServerId) {
+        this.in = new DataInputStream(body);
+        this.defaultContentServerId = defaultContentServerId;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (remaining == 0) {
+            int high = in.read();
+            if (high < 0) {
+                return false; // A body may only end between groups
+            }
+            int length = (high << 8) | in.readUnsignedByte();
+            byte[] id = new byte[length];
+            in.readFully(id);
+            contentServerId = length == 0 ? defaultContentServerId : new String(id, StandardCharsets.UTF_8);
+            remaining = in.readInt() & 0xffffffffL;
+        }
+        int length = in.readInt();
+        if (length < 4 || length > AggregationServer.maxBodySize) {
+            throw new IllegalArgumentException("Invalid record length " + length);
+        }
+        if (length > buffer.length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        in.readFully(buffer, 0, length);
+        record = WeatherRecord.readBinary(buffer, 0, length, text, numbers);
+        remaining--;
+        return true;
+    }
+
+    @Override
+    public String contentServerId() {
+        return contentServerId;
+    }
+
+    @Override
+    public WeatherRecord record() {
+        return record;
+    }
+}
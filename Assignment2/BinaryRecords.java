@@ -0,0 +1,95 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact length-prefixed encoding of weather records, offered next to JSON. A PUT selects it
+// with Content-Type and a GET with Accept, both set to CONTENT_TYPE.
+//
+//   body   := group*
+//   group  := string contentServerId, u32 recordCount, record*
+//   record := u32 length, u32 presentFields, then every present field in WeatherRecord's
+//             order: text as string, numbers as 8 byte IEEE doubles, other fields as string (JSON)
+//   string := u16 byteLength, UTF-8 bytes
+//
+// Integers are big-endian. An empty content server id stands for the request's Content-Server-ID.
+public final class BinaryRecords {
+
+    public static final String CONTENT_TYPE = "application/x-weather-records";
+
+    private BinaryRecords() {
+    }
+
+    public static boolean isBinary(String contentType) {
+        return contentType != null && contentType.trim().toLowerCase().startsWith(CONTENT_TYPE);
+    }
+
+    // Whether an Accept header lists the binary encoding without refusing it (q=0)
+    public static boolean accepts(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        for (String range : accept.split(",")) {
+            String[] params = range.split(";");
+            if (!params[0].trim().equalsIgnoreCase(CONTENT_TYPE)) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") && Double.parseDouble(param.substring(2)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public static byte[] encode(List<WeatherRecord> records) {
+        Map<String, List<WeatherRecord>> group = new LinkedHashMap<>();
+        group.put("", records);
+        return encode(group);
+    }
+
+    public static byte[] encode(Map<String, List<WeatherRecord>> groups) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (Map.Entry<String, List<WeatherRecord>> group : groups.entrySet()) {
+                writeString(out, group.getKey());
+                out.writeInt(group.getValue().size());
+                for (WeatherRecord record : group.getValue()) {
+                    record.writeBinary(out);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen, the stream is in memory
+        }
+        return bytes.toByteArray();
+    }
+
+    // Every record of an encoded body, ignoring which content server it belongs to
+    public static List<WeatherRecord> decode(byte[] body) throws IOException {
+        List<WeatherRecord> records = new ArrayList<>();
+        BinaryRecordReader reader = new BinaryRecordReader(new ByteArrayInputStream(body), "");
+        while (reader.next()) {
+            records.add(reader.record());
+        }
+        return records;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > 0xffff) {
+            throw new IllegalArgumentException("String field longer than 65535 bytes");
+        }
+        out.writeShort(utf8.length);
+        out.write(utf8);
+    }
+}
@@ -0,0 +1,360 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+// Bulk ingest of large weather data files, for ContentServer --bulk. The file is memory-mapped
+// and cut into chunks of about CHUNK_SIZE bytes that each start at an "id:" line, so every chunk
+// holds whole records. Chunks are parsed in parallel straight from the mapped bytes: no regex,
+// no per-line String for keys, and plain decimals parsed without Double.parseDouble. Each parsed
+// chunk becomes one binary PUT, sent in file order over one kept-alive connection while later
+// chunks are still being parsed, so a later reading of a station still replaces an earlier one.
+//
+// Unlike the line parser in ContentServer, a value is everything after the first colon, so
+// "local_date_time: 15/04:00pm" is kept instead of being rejected.
+public class BulkLoader {
+
+    static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_LINE = 64 * 1024;
+    private static final byte[] RECORD_START = "\nid:".getBytes(StandardCharsets.US_ASCII);
+
+    // Field names as bytes, each with its WeatherRecord slot; numbers are offset by NUMBER_BASE
+    private static final int NUMBER_BASE = 100;
+    private static final byte[][] KEYS;
+    private static final int[] SLOTS;
+
+    static {
+        String[] names = {"id", "name", "state", "time_zone", "local_date_time", "local_date_time_full", "cloud",
+                "wind_dir", "lat", "lon", "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+        KEYS = new byte[names.length][];
+        SLOTS = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            KEYS[i] = names[i].getBytes(StandardCharsets.US_ASCII);
+            int text = WeatherRecord.textSlot(names[i]);
+            SLOTS[i] = text >= 0 ? text : NUMBER_BASE + WeatherRecord.numberSlot(names[i]);
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final int port;
+    private final String contentServerId;
+    private final LamportClock lamportClock;
+    private final int threads;
+
+    private long records;
+    private long skippedLines;
+
+    public BulkLoader(int port, String contentServerId, LamportClock lamportClock, int threads) {
+        this.port = port;
+        this.contentServerId = contentServerId;
+        this.lamportClock = lamportClock;
+        this.threads = threads;
+    }
+
+    // Loads the whole file, returning the number of records sent
+    public long load(Path file) throws IOException, InterruptedException {
+        ExecutorService parsers = Executors.newFixedThreadPool(threads);
+        // Bounds memory: at most this many parsed chunks wait for the sender
+        Semaphore window = new Semaphore(threads * 2);
+        LinkedBlockingQueue<Future<Chunk>> parsed = new LinkedBlockingQueue<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            List<long[]> chunks = split(channel, CHUNK_SIZE);
+            Thread submitter = new Thread(() -> {
+                try {
+                    for (long[] range : chunks) {
+                        window.acquire();
+                        parsed.add(parsers.submit(() -> parse(channel, range[0], range[1])));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "bulk-submitter");
+            submitter.start();
+            try {
+                for (int i = 0; i < chunks.size(); i++) {
+                    Chunk chunk = await(parsed.take());
+                    window.release();
+                    skippedLines += chunk.skippedLines;
+                    if (chunk.count > 0) {
+                        send(out, in, chunk.body);
+                        records += chunk.count;
+                    }
+                }
+            } finally {
+                submitter.interrupt();
+            }
+        } finally {
+            parsers.shutdownNow();
+        }
+        return records;
+    }
+
+    public long getSkippedLines() {
+        return skippedLines;
+    }
+
+    // Chunk boundaries: each chunk after the first starts at the first "id:" line at or after a
+    // multiple of the chunk size, so no record is cut in two
+    static List<long[]> split(FileChannel channel, int chunkSize) throws IOException {
+        long size = channel.size();
+        List<long[]> chunks = new ArrayList<>();
+        long start = 0;
+        while (start < size) {
+            long end = start + chunkSize >= size ? size : nextRecordStart(channel, start + chunkSize, size);
+            chunks.add(new long[]{start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    // Offset of the first line starting with "id:" at or after the given one, or the file size
+    private static long nextRecordStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(64 * 1024);
+        long position = from - 1; // So that a record starting exactly at `from` is found
+        while (position < size) {
+            window.clear();
+            int read = channel.read(window, position);
+            if (read < RECORD_START.length) {
+                return size;
+            }
+            byte[] bytes = window.array();
+            for (int i = 0; i + RECORD_START.length <= read; i++) {
+                if (bytes[i] == '\n' && bytes[i + 1] == 'i' && bytes[i + 2] == 'd' && bytes[i + 3] == ':') {
+                    return position + i + 1;
+                }
+            }
+            // Overlap so a marker spanning two windows is not missed
+            position += read - RECORD_START.length + 1;
+        }
+        return size;
+    }
+
+    // Parses the records of one chunk and encodes them as one binary PUT body
+    static Chunk parse(FileChannel channel, long start, long end) throws IOException {
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        List<WeatherRecord> parsed = new ArrayList<>();
+        String[] text = WeatherRecord.textScratch();
+        double[] numbers = WeatherRecord.numberScratch();
+        Arrays.fill(numbers, Double.NaN);
+        byte[] line = new byte[256];
+        int skipped = 0;
+        int limit = data.limit();
+        int position = 0;
+        while (position < limit) {
+            int lineEnd = position;
+            while (lineEnd < limit && data.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int length = lineEnd - position;
+            if (length > MAX_LINE) {
+                skipped++;
+                position = lineEnd + 1;
+                continue;
+            }
+            if (length > line.length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            data.get(position, line, 0, length);
+            position = lineEnd + 1;
+
+            int colon = indexOf(line, (byte) ':', 0, length);
+            if (colon < 0) {
+                if (!isBlank(line, 0, length)) {
+                    skipped++;
+                }
+                continue;
+            }
+            int field = field(line, 0, colon);
+            if (field < 0) {
+                skipped++;
+                continue;
+            }
+            int slot = SLOTS[field];
+            if (slot == 0 && text[0] != null) {
+                // The next record starts
+                parsed.add(WeatherRecord.of(text, numbers));
+                Arrays.fill(text, null);
+                Arrays.fill(numbers, Double.NaN);
+            }
+            // Same clean-up as ContentServer.parseWeatherData: trimmed, commas dropped
+            int valueStart = colon + 1;
+            int valueEnd = length;
+            while (valueStart < valueEnd && line[valueStart] <= ' ') {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && line[valueEnd - 1] <= ' ') {
+                valueEnd--;
+            }
+            valueEnd = removeCommas(line, valueStart, valueEnd);
+            if (slot >= NUMBER_BASE) {
+                double value = parseNumber(line, valueStart, valueEnd);
+                if (Double.isNaN(value)) {
+                    skipped++;
+                } else {
+                    numbers[slot - NUMBER_BASE] = value;
+                }
+            } else {
+                text[slot] = new String(line, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+            }
+        }
+        if (text[0] != null) {
+            parsed.add(WeatherRecord.of(text, numbers));
+        }
+        return new Chunk(parsed.size(), parsed.isEmpty() ? null : BinaryRecords.encode(parsed), skipped);
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Index into KEYS of the trimmed key, or -1 when it is not a known field
+    private static int field(byte[] line, int from, int to) {
+        while (from < to && line[from] <= ' ') {
+            from++;
+        }
+        while (to > from && line[to - 1] <= ' ') {
+            to--;
+        }
+        for (int i = 0; i < KEYS.length; i++) {
+            if (Arrays.equals(KEYS[i], 0, KEYS[i].length, line, from, to)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Drops commas in place, returning the new end
+    private static int removeCommas(byte[] bytes, int from, int to) {
+        int write = from;
+        for (int read = from; read < to; read++) {
+            if (bytes[read] != ',') {
+                bytes[write++] = bytes[read];
+            }
+        }
+        return write;
+    }
+
+    // Plain decimals such as "-34.9" exactly as Double.parseDouble would: mantissas below 2^53
+    // and powers of ten up to 1e22 are exact doubles, so one division rounds correctly. Anything
+    // else is left to Double.parseDouble. NaN when the value is not a number.
+    static double parseNumber(byte[] bytes, int from, int to) {
+        int i = from;
+        boolean negative = i < to && bytes[i] == '-';
+        if (negative || (i < to && bytes[i] == '+')) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < to; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (++digits > 15) {
+                    return parseSlowly(bytes, from, to);
+                }
+                if (fraction >= 0) {
+                    fraction++;
+                }
+            } else if (b == '.' && fraction < 0) {
+                fraction = 0;
+            } else {
+                return parseSlowly(bytes, from, to);
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private static double parseSlowly(byte[] bytes, int from, int to) {
+        try {
+            return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private void send(OutputStream out, InputStream in, byte[] body) throws IOException {
+        String head = "PUT /weather.json HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: " + BinaryRecords.CONTENT_TYPE + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Lamport-Clock: " + lamportClock.getTime() + "\r\n"
+                + "Content-Server-ID: " + contentServerId + "\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n";
+        out.write(head.getBytes(StandardCharsets.UTF_8));
+        out.write(body);
+        out.flush();
+        HttpResponse response = HttpResponse.read(in);
+        if (response == null) {
+            throw new IOException("Server closed the connection");
+        }
+        if (response.getStatusCode() != 200) {
+            throw new IOException("PUT answered " + response.getStatusLine());
+        }
+        String clock = response.getHeader("Lamport-Clock");
+        if (clock != null) {
+            lamportClock.updateTime(Long.parseLong(clock));
+        }
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    static final class Chunk {
+        final int count;
+        final byte[] body;
+        final int skippedLines;
+
+        Chunk(int count, byte[] body, int skippedLines) {
+            this.count = count;
+            this.body = body;
+            this.skippedLines = skippedLines;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+// Bounded ring buffer of recent station changes, tagged with the Lamport time at
+// which they were committed, so pollers can ask for what changed since their last read.
+//
+// The clock is ticked under the buffer's lock together with the append, which keeps
+// the buffer sorted by Lamport time even when writers on different stripes commit
+// concurrently. Subscribers are notified from the same critical section, so they see
+// events in that order too.
+public class ChangeLog {
+
+    private final int capacity;
+    private final long[] clocks;
+    private final String[] ids;
+    private final WeatherRecord[] records; // null marks an expiry
+    private long appended;
+    // Lamport time of the newest entry that has been overwritten
+    private long horizon;
+
+    public ChangeLog(int capacity) {
+        this.capacity = capacity;
+        this.clocks = new long[capacity];
+        this.ids = new String[capacity];
+        this.records = new WeatherRecord[capacity];
+    }
+
+    // Ticks the clock for a committed batch and records its stations; returns the batch's time
+    public synchronized long recordUpdates(Map<String, List<WeatherRecord>> batch, long receivedClock) {
+        AggregationServer.lamportClock.updateTime(receivedClock);
+        long time = AggregationServer.lamportClock.getTime();
+        for (List<WeatherRecord> stations : batch.values()) {
+            for (WeatherRecord record : stations) {
+                add(time, record.getId(), record);
+            }
+        }
+        if (AggregationServer.subscriptionHub != null) {
+            AggregationServer.subscriptionHub.publishUpdates(time, batch);
+        }
+        return time;
+    }
+
+    // Ticks the clock for an expiry and records the removed stations
+    public synchronized long recordExpiry(List<String> stationIds) {
+        AggregationServer.lamportClock.increaseTime();
+        long time = AggregationServer.lamportClock.getTime();
+        for (String id : stationIds) {
+            add(time, id, null);
+        }
+        if (AggregationServer.subscriptionHub != null) {
+            AggregationServer.subscriptionHub.publishExpiry(time, stationIds);
+        }
+        return time;
+    }
+
+    // Hands a connection to the subscription hub at the current position: every change recorded
+    // after this call reaches it, none recorded before does. headers renders the response head
+    // for the Lamport time the feed starts after.
+    public synchronized long subscribe(SocketChannel channel, LongFunction<byte[]> headers) throws IOException {
+        AggregationServer.lamportClock.increaseTime();
+        long time = AggregationServer.lamportClock.getTime();
+        AggregationServer.subscriptionHub.subscribe(channel, headers.apply(time));
+        return time;
+    }
+
+    private void add(long time, String id, WeatherRecord record) {
+        int slot = (int) (appended % capacity);
+        if (appended >= capacity) {
+            horizon = clocks[slot];
+        }
+        clocks[slot] = time;
+        ids[slot] = id;
+        records[slot] = record;
+        appended++;
+    }
+
+    // Returns the changes committed after `since` as {"since", "until", "full": false,
+    // "updated": [...], "expired": [...]}, or null when part of that range was already
+    // overwritten and the caller has to fall back to a full read.
+    public synchronized JSONObject since(long since) {
+        if (since < horizon) {
+            return null;
+        }
+        // Entries are sorted by time, so walk back from the newest to the first one not after `since`
+        long first = appended;
+        long oldest = Math.max(0, appended - capacity);
+        while (first > oldest && clocks[(int) ((first - 1) % capacity)] > since) {
+            first--;
+        }
+        // Later changes of the same station win, so each station appears once
+        Map<String, WeatherRecord> latest = new LinkedHashMap<>();
+        for (long i = first; i < appended; i++) {
+            int slot = (int) (i % capacity);
+            latest.remove(ids[slot]);
+            latest.put(ids[slot], records[slot]);
+        }
+        JSONArray updated = new JSONArray();
+        JSONArray expired = new JSONArray();
+        for (Map.Entry<String, WeatherRecord> change : latest.entrySet()) {
+            if (change.getValue() == null) {
+                expired.put(change.getKey());
+            } else {
+                updated.put(change.getValue().toJSON());
+            }
+        }
+        // Every change up to this time is already in the buffer, so it is the next `since`
+        return new JSONObject()
+                .put("since", since)
+                .put("until", AggregationServer.lamportClock.getTime())
+                .put("full", false)
+                .put("updated", updated)
+                .put("expired", expired);
+    }
+}
@@ -1,5 +1,9 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 import org.json.JSONArray;
 
 public class Client {
@@ -7,37 +11,153 @@ public class Client {
     private static LamportClock lamportClockTimeStamp = new LamportClock();
 
     public static void main(String[] args) {
-        if (args.length < 3) {
-            System.out.println("Usage: java Client <host> <port> [ID]");
+        if (args.length < 2) {
+            System.out.println("Usage: java Client <host> <port> [ID | --subscribe] [--cache <dir>] [--every <seconds>]");
             return;
         }
 
         String host = args[0];  // First argument is the host
         String serverPort = args[1]; // Second argument is the port
-        String id = args.length > 2 ? args[2] : null; // Optional ID
+        if (args.length > 2 && args[2].equals("--subscribe")) {
+            subscribe(host, Integer.parseInt(serverPort));
+            return;
+        }
+        String id = null; // Optional ID
+        String cacheDirectory = null;
+        double every = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--cache") && i + 1 < args.length) {
+                cacheDirectory = args[++i];
+            } else if (args[i].equals("--every") && i + 1 < args.length) {
+                every = Double.parseDouble(args[++i]);
+            } else {
+                id = args[i];
+            }
+        }
 
+        // Kept in memory for repeated reads with --every, and on disk across runs with --cache
+        ResponseCache cache = new ResponseCache(cacheDirectory == null ? null : Paths.get(cacheDirectory));
         try {
-            Socket socket = new Socket(host, Integer.parseInt(serverPort));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.println("GET " + (id != null ? "/" + id : "") + " HTTP/1.1");
-            out.println("Host: " + host);
-            out.println("Lamport-Clock: " + lamportClockTimeStamp.getTime());
-            out.println();
+            fetch(host, Integer.parseInt(serverPort), id, cache);
+            while (every > 0) {
+                Thread.sleep((long) (every * 1000));
+                System.out.println();
+                fetch(host, Integer.parseInt(serverPort), id, cache);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // One GET, revalidating the cached copy of the path if there is one
+    private static void fetch(String host, int port, String id, ResponseCache cache) throws IOException {
+        String path = "/" + (id != null ? id : "");
+        String server = host + ":" + port;
+        ResponseCache.Entry cached = cache.get(server, path);
+        try (Socket socket = new Socket(host, port)) {
+            OutputStream out = socket.getOutputStream();
+            String request = "GET " + path + " HTTP/1.1\r\n"
+                    + "Host: " + host + "\r\n"
+                    + "Lamport-Clock: " + lamportClockTimeStamp.getTime() + "\r\n"
+                    + "Accept: " + BinaryRecords.CONTENT_TYPE + ", application/json;q=0.5\r\n"
+                    + "Accept-Encoding: gzip, deflate\r\n" // The server compresses large responses
+                    + (cached != null ? "If-None-Match: " + cached.getETag() + "\r\n" : "")
+                    + "\r\n";
+            out.write(request.getBytes(StandardCharsets.UTF_8));
             out.flush();
 
-            String responseBody;
-            while ((responseBody = in.readLine()) != null) {
-                if (responseBody.startsWith("Lamport-Clock:")) {
-                    int serverClock = Integer.parseInt(responseBody.split(":")[1].trim());
-                    lamportClockTimeStamp.updateTime(serverClock);
+            HttpResponse response = HttpResponse.read(new BufferedInputStream(socket.getInputStream()));
+            if (response != null) {
+                long serverClock = 0;
+                System.out.println(response.getStatusLine());
+                for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+                    if (header.getKey().equalsIgnoreCase("Lamport-Clock")) {
+                        serverClock = Long.parseLong(header.getValue());
+                        lamportClockTimeStamp.updateTime(serverClock);
+                    } else {
+                        System.out.println(header.getKey() + ": " + header.getValue());
+                    }
+                }
+                System.out.println();
+                String contentType = response.getHeader("Content-Type");
+                byte[] body = response.getBody();
+                if (response.getStatusCode() == 304 && cached != null) {
+                    System.out.println("Unchanged since Lamport-Clock " + cached.getLamportClock() + ", using the cached body");
+                    contentType = cached.getContentType();
+                    body = cached.getBody();
+                }
+                if (BinaryRecords.isBinary(contentType)) {
+                    // Decoded here and printed as JSON, so the output looks the same either way
+                    List<WeatherRecord> records = BinaryRecords.decode(body);
+                    System.out.println(id != null && records.size() == 1 ? records.get(0).toString()
+                            : WeatherRecord.toJSONString(records));
                 } else {
-                    System.out.println(responseBody);
+                    System.out.println(new String(body, StandardCharsets.UTF_8));
+                }
+                String etag = response.getHeader("ETag");
+                if (response.getStatusCode() == 200 && etag != null) {
+                    try {
+                        cache.put(server, path, new ResponseCache.Entry(etag, serverClock,
+                                contentType == null ? "application/json" : contentType, body));
+                    } catch (IOException e) {
+                        System.err.println("Could not cache " + path + ": " + e.getMessage());
+                    }
                 }
             }
 
             System.out.println("Lamport Clock Timestamp at Client: " + lamportClockTimeStamp.getTime());
-            socket.close();
+        }
+    }
+
+    // Keeps the connection open and prints every update and expiry the server pushes
+    private static void subscribe(String host, int port) {
+        try (Socket socket = new Socket(host, port)) {
+            OutputStream out = socket.getOutputStream();
+            String request = "GET / HTTP/1.1\r\n"
+                    + "Host: " + host + "\r\n"
+                    + "Lamport-Clock: " + lamportClockTimeStamp.getTime() + "\r\n"
+                    + "Accept: text/event-stream\r\n"
+                    + "\r\n";
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String statusLine = HttpResponse.readLine(in);
+            System.out.println(statusLine);
+            String line;
+            while ((line = HttpResponse.readLine(in)) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, "Lamport-Clock:", 0, 14)) {
+                    lamportClockTimeStamp.updateTime(Long.parseLong(line.substring(14).trim()));
+                }
+            }
+            if (statusLine == null || !statusLine.contains(" 200 ")) {
+                return;
+            }
+            // Events are blocks of "field: value" lines separated by a blank line
+            String type = "message";
+            StringBuilder data = new StringBuilder();
+            while ((line = HttpResponse.readLine(in)) != null) {
+                if (line.isEmpty()) {
+                    if (data.length() > 0) {
+                        System.out.println(type + ": " + data);
+                        if (type.equals("overflow")) {
+                            System.out.println("Fell behind, fetch GET /?since=<last id> to catch up");
+                        }
+                    }
+                    type = "message";
+                    data.setLength(0);
+                } else if (line.startsWith("id: ")) {
+                    lamportClockTimeStamp.updateTime(Long.parseLong(line.substring(4)));
+                } else if (line.startsWith("event: ")) {
+                    type = line.substring(7);
+                } else if (line.startsWith("data: ")) {
+                    data.append(line.substring(6));
+                }
+                // Lines starting with ':' are heartbeats
+            }
+            System.out.println("Subscription closed, Lamport Clock Timestamp at Client: " + lamportClockTimeStamp.getTime());
         } catch (IOException e) {
             e.printStackTrace();
         }
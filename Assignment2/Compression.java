@@ -0,0 +1,107 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// gzip / deflate content coding shared by the aggregation server, Client and ContentServer
+public class Compression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    // Below this size compression costs more than the bytes it saves
+    public static final int MIN_SIZE = 1024;
+
+    // Picks the coding to answer with from an Accept-Encoding header, or null for identity
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] coding = part.trim().split(";");
+            String name = coding[0].trim().toLowerCase();
+            if (coding.length > 1 && coding[1].replace(" ", "").matches("q=0(\\.0*)?")) {
+                continue; // Explicitly refused
+            }
+            if (name.equals(GZIP)) {
+                return GZIP;
+            }
+            deflate |= name.equals(DEFLATE);
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    public static byte[] encode(byte[] data, String coding) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (OutputStream out = GZIP.equals(coding) ? new GZIPOutputStream(buffer) : new DeflaterOutputStream(buffer)) {
+            out.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Cannot happen with an in-memory buffer
+        }
+        return buffer.toByteArray();
+    }
+
+    public static boolean isSupported(String coding) {
+        return coding == null || coding.equalsIgnoreCase("identity")
+                || coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase(DEFLATE);
+    }
+
+    // A coded body decodes to more bytes than the limit allows
+    public static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    // Same as decode, but fails with TooLargeException once more than limit decoded bytes were
+    // read, since a few kilobytes of gzip can expand to gigabytes
+    public static InputStream decode(InputStream in, String coding, long limit) throws IOException {
+        InputStream decoded = decode(in, coding);
+        if (decoded == in) {
+            return in; // Identity, already bounded by its Content-Length
+        }
+        return new FilterInputStream(decoded) {
+            private long remaining = limit;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0 && --remaining < 0) {
+                    throw new TooLargeException("Decoded body exceeds " + limit + " bytes");
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0 && (remaining -= n) < 0) {
+                    throw new TooLargeException("Decoded body exceeds " + limit + " bytes");
+                }
+                return n;
+            }
+        };
+    }
+
+    // Wraps a stream so it yields decoded bytes for the given Content-Encoding (null for identity)
+    public static InputStream decode(InputStream in, String coding) throws IOException {
+        if (coding == null || coding.equalsIgnoreCase("identity")) {
+            return in;
+        }
+        if (coding.equalsIgnoreCase(GZIP)) {
+            return new GZIPInputStream(in);
+        }
+        if (coding.equalsIgnoreCase(DEFLATE)) {
+            return new InflaterInputStream(in);
+        }
+        throw new IOException("Unsupported content encoding: " + coding);
+    }
+}
@@ -1,26 +1,120 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public class ContentServer {
 
     private static LamportClock lamportClock = new LamportClock();
+    // Daemon mode, see runDaemon
+    private static final long HEARTBEAT_INTERVAL = 1000; // Well inside the server's TIME_LIMIT
+    private static final int SOCKET_TIMEOUT = 10000;
+    private static final long MIN_BACKOFF = 500;
+    private static final long MAX_BACKOFF = 30000;
 
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.out.println("Usage: java ContentServer <portNumber> <locationOfWeather-sample-data.txt> <ContentServerID>");
+            System.out.println("Usage: java ContentServer <portNumber> <locationOfWeather-sample-data.txt> <ContentServerID> [binary|json] [--daemon | --bulk]");
             return;
         }
 
         String serverPort = args[0];
         String weatherDataFileLocation = args[1];
         String contentServerIdNumber = args[2];
+        // Offer the binary encoding first; servers that predate it reject the body and get JSON
+        boolean binary = true;
+        boolean daemon = false;
+        boolean bulk = false;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("json")) {
+                binary = false;
+            } else if (args[i].equals("--daemon")) {
+                daemon = true;
+            } else if (args[i].equals("--bulk")) {
+                bulk = true;
+            }
+        }
 
         try {
+            // Parse port number
+            int portNumber;
+            try {
+                portNumber = Integer.parseInt(serverPort);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid port number: " + serverPort);
+                return;
+            }
+
+            // Start the Content Server
+            System.out.println("Content Server Started with ID: " + contentServerIdNumber);
+
+            if (daemon) {
+                runDaemon(portNumber, weatherDataFileLocation, contentServerIdNumber, binary);
+                return;
+            }
+            if (bulk) {
+                // Always binary: large files are what the encoding is for
+                long start = System.nanoTime();
+                BulkLoader loader = new BulkLoader(portNumber, contentServerIdNumber, lamportClock,
+                        Runtime.getRuntime().availableProcessors());
+                long sent = loader.load(Paths.get(weatherDataFileLocation));
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("Sent %d records in %.2f s (%.0f records/s, %.1f MB/s), skipped %d lines%n", sent, seconds,
+                        sent / seconds, Files.size(Paths.get(weatherDataFileLocation)) / seconds / 1e6, loader.getSkippedLines());
+                System.out.println("Lamport Clock Timestamp at Content Server: " + lamportClock.getTime());
+                return;
+            }
+
             // Read weather data from the file
-            JSONArray weatherArray = new JSONArray();
-            BufferedReader reader = new BufferedReader(new FileReader(weatherDataFileLocation));
+            JSONArray weatherArray = readWeatherFile(weatherDataFileLocation);
+
+            HttpResponse response = sendPut(portNumber, weatherArray, contentServerIdNumber, binary);
+            if (binary && response != null && (response.getStatusCode() == 415 || response.getStatusCode() == 500)) {
+                System.out.println("Server does not accept " + BinaryRecords.CONTENT_TYPE + ", sending JSON");
+                response = sendPut(portNumber, weatherArray, contentServerIdNumber, false);
+            }
+            if (response != null) {
+                System.out.println(response.getStatusLine());
+                for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+                    if (header.getKey().equalsIgnoreCase("Lamport-Clock")) {
+                        lamportClock.updateTime(Long.parseLong(header.getValue()));
+                    } else {
+                        System.out.println(header.getKey() + ": " + header.getValue());
+                    }
+                }
+            }
+
+            System.out.println("Lamport Clock Timestamp at Content Server: " + lamportClock.getTime());
+        } catch (FileNotFoundException e) {
+            System.err.println("Weather data file not found: " + weatherDataFileLocation);
+        } catch (IOException e) {
+            System.err.println("I/O error occurred: " + e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Reads every record of a weather data file; a line starting with "id:" begins the next record
+    private static JSONArray readWeatherFile(String weatherDataFileLocation) throws IOException {
+        JSONArray weatherArray = new JSONArray();
+        try (BufferedReader reader = new BufferedReader(new FileReader(weatherDataFileLocation))) {
             StringBuilder record = new StringBuilder();
             String line;
 
@@ -42,58 +136,179 @@ public class ContentServer {
             if (record.length() > 0) {
                 weatherArray.put(parseWeatherData(record.toString()));
             }
+        }
+        return weatherArray;
+    }
+
+    // Daemon mode: keeps one connection open and sends a heartbeat every HEARTBEAT_INTERVAL so
+    // the server keeps the stations, and only the records that changed whenever the file does.
+    // Everything is sent again after a reconnect or when the server no longer knows this content
+    // server. Stations deleted from the file are not withdrawn; they expire with the content server.
+    private static void runDaemon(int portNumber, String fileLocation, String contentServerId, boolean binary)
+            throws IOException, InterruptedException {
+        Path file = Paths.get(fileLocation).toAbsolutePath();
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        // Directories are watched, not files; editors often replace the file instead of writing to it
+        file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Map<String, JSONObject> sent = new HashMap<>(); // What the server holds, by station id
+        long backoff = MIN_BACKOFF;
+        while (true) {
+            try (Socket socket = new Socket("localhost", portNumber)) {
+                socket.setSoTimeout(SOCKET_TIMEOUT);
+                OutputStream out = socket.getOutputStream();
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                System.out.println("Connected to port " + portNumber);
+                sent.clear(); // The server may have restarted while we were away
+                boolean fileChanged = true;
+                while (true) {
+                    JSONArray changed = fileChanged ? changedRecords(readWeatherFile(fileLocation), sent) : new JSONArray();
+                    if (changed.length() > 0) {
+                        HttpResponse response = exchange(out, in, putRequest(changed, contentServerId, binary, true));
+                        if (binary && response.getStatusCode() == 415) {
+                            binary = false;
+                            throw new IOException("Server does not accept " + BinaryRecords.CONTENT_TYPE + ", switching to JSON");
+                        }
+                        if (response.getStatusCode() != 200) {
+                            throw new IOException("PUT answered " + response.getStatusLine());
+                        }
+                        for (int i = 0; i < changed.length(); i++) {
+                            sent.put(changed.getJSONObject(i).getString("id"), changed.getJSONObject(i));
+                        }
+                        System.out.println("Sent " + changed.length() + " changed records, Lamport clock " + lamportClock.getTime());
+                    } else {
+                        HttpResponse response = exchange(out, in, heartbeatRequest(contentServerId));
+                        if (response.getStatusCode() == 404) {
+                            // Expired in the meantime, e.g. while the server was paused
+                            sent.clear();
+                            fileChanged = true;
+                            continue;
+                        }
+                        if (response.getStatusCode() != 200) {
+                            throw new IOException("Heartbeat answered " + response.getStatusLine());
+                        }
+                    }
+                    backoff = MIN_BACKOFF;
+                    fileChanged = awaitChange(watcher, file.getFileName(), HEARTBEAT_INTERVAL);
+                }
+            } catch (IOException | JSONException e) {
+                System.err.println("Connection to port " + portNumber + " failed: " + e.getMessage()
+                        + ", retrying in " + backoff + " ms");
+                // Jitter keeps many content servers from reconnecting in lockstep after a server restart
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+    }
 
-            reader.close();
+    // Records that are new or differ from what was sent last
+    private static JSONArray changedRecords(JSONArray current, Map<String, JSONObject> sent) {
+        JSONArray changed = new JSONArray();
+        for (int i = 0; i < current.length(); i++) {
+            JSONObject record = current.getJSONObject(i);
+            if (record.optString("id").isEmpty()) {
+                // The server would reject the whole PUT, and resending the file would not help
+                System.err.println("Skipping a record without an id: " + record);
+                continue;
+            }
+            JSONObject previous = sent.get(record.getString("id"));
+            if (previous == null || !previous.similar(record)) {
+                changed.put(record);
+            }
+        }
+        return changed;
+    }
 
-            // Parse port number
-            int portNumber;
-            try {
-                portNumber = Integer.parseInt(serverPort);
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid port number: " + serverPort);
-                return;
+    // Waits up to the timeout for the data file to change; true as soon as it does
+    private static boolean awaitChange(WatchService watcher, Path fileName, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long left;
+        while ((left = deadline - System.currentTimeMillis()) > 0) {
+            WatchKey key = watcher.poll(left, TimeUnit.MILLISECONDS);
+            if (key == null) {
+                return false;
+            }
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                changed |= fileName.equals(event.context());
+            }
+            key.reset();
+            if (changed) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            // Start the Content Server
-            System.out.println("Content Server Started with ID: " + contentServerIdNumber);
+    // Sends one request over a kept-alive connection and merges the server's Lamport time
+    private static HttpResponse exchange(OutputStream out, InputStream in, byte[] request) throws IOException {
+        out.write(request);
+        out.flush();
+        HttpResponse response = HttpResponse.read(in);
+        if (response == null) {
+            throw new IOException("Server closed the connection");
+        }
+        String clock = response.getHeader("Lamport-Clock");
+        if (clock != null) {
+            lamportClock.updateTime(Long.parseLong(clock));
+        }
+        return response;
+    }
 
-            // Connect to the Aggregation Server
-            Socket socket = new Socket("localhost", portNumber);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Prepare JSON data for sending
-            String json = weatherArray.toString();
-            out.println("PUT /weather.json HTTP/1.1");
-            out.println("Host: localhost");
-            out.println("Content-Type: application/json");
-            out.println("Content-Length: " + json.length());
-            out.println("Lamport-Clock: " + lamportClock.getTime());
-            out.println("Content-Server-ID: " + contentServerIdNumber);
-            out.println();
-            out.println(json);
+    private static byte[] heartbeatRequest(String contentServerId) {
+        return ("PUT /heartbeat HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Length: 0\r\n"
+                + "Lamport-Clock: " + lamportClock.getTime() + "\r\n"
+                + "Content-Server-ID: " + contentServerId + "\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Sends one PUT with the records as JSON or in the binary encoding and reads the response
+    private static HttpResponse sendPut(int portNumber, JSONArray weatherArray, String contentServerId, boolean binary) throws IOException {
+        try (Socket socket = new Socket("localhost", portNumber)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(putRequest(weatherArray, contentServerId, binary, false));
             out.flush();
+            return HttpResponse.read(new BufferedInputStream(socket.getInputStream()));
+        }
+    }
 
-            // Read the server response
-            String responseBody;
-            while ((responseBody = in.readLine()) != null) {
-                if (responseBody.startsWith("Lamport-Clock:")) {
-                    int serverClock = Integer.parseInt(responseBody.split(":")[1].trim());
-                    lamportClock.updateTime(serverClock);
-                } else {
-                    System.out.println(responseBody);
-                }
+    // Request bytes of one PUT
+    private static byte[] putRequest(JSONArray weatherArray, String contentServerId, boolean binary, boolean keepAlive) {
+        byte[] body;
+        if (binary) {
+            List<WeatherRecord> records = new ArrayList<>();
+            for (int i = 0; i < weatherArray.length(); i++) {
+                records.add(WeatherRecord.fromJSON(weatherArray.getJSONObject(i)));
             }
-
-            System.out.println("Lamport Clock Timestamp at Content Server: " + lamportClock.getTime());
-            socket.close();
-        } catch (FileNotFoundException e) {
-            System.err.println("Weather data file not found: " + weatherDataFileLocation);
-        } catch (IOException e) {
-            System.err.println("I/O error occurred: " + e.getMessage());
-        } catch (Exception e) {
-            e.printStackTrace();
+            body = BinaryRecords.encode(records);
+        } else {
+            body = weatherArray.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        // Compressed when it is large enough to be worth it
+        boolean compressed = body.length >= Compression.MIN_SIZE;
+        if (compressed) {
+            body = Compression.encode(body, Compression.GZIP);
+        }
+        StringBuilder head = new StringBuilder();
+        head.append("PUT /weather.json HTTP/1.1\r\n");
+        head.append("Host: localhost\r\n");
+        head.append("Content-Type: ").append(binary ? BinaryRecords.CONTENT_TYPE : "application/json").append("\r\n");
+        if (compressed) {
+            head.append("Content-Encoding: ").append(Compression.GZIP).append("\r\n");
+        }
+        head.append("Content-Length: ").append(body.length).append("\r\n"); // Bytes, not chars
+        head.append("Lamport-Clock: ").append(lamportClock.getTime()).append("\r\n");
+        head.append("Content-Server-ID: ").append(contentServerId).append("\r\n");
+        if (keepAlive) {
+            head.append("Connection: keep-alive\r\n");
         }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] request = Arrays.copyOf(headBytes, headBytes.length + body.length);
+        System.arraycopy(body, 0, request, headBytes.length, body.length);
+        return request;
     }
 
     // Method to parse weather data from a formatted string
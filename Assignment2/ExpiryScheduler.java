@@ -0,0 +1,71 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Evicts the stations of content servers that stopped pushing, on a background
+// thread so that GET requests never pay for expiry.
+public class ExpiryScheduler {
+
+    private static final long SWEEP_INTERVAL = 100;
+
+    private final long timeLimit;
+    // Every content server gets the same time limit, so deadlines are queued in increasing
+    // order and a FIFO queue is enough. Refreshed servers leave stale entries behind which
+    // are skipped when they reach the head, keeping each push at amortized O(1).
+    private final ArrayDeque<Deadline> deadlines = new ArrayDeque<>();
+    private ScheduledExecutorService executor;
+
+    public ExpiryScheduler(long timeLimit) {
+        this.timeLimit = timeLimit;
+    }
+
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "expiry-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> sweep(AggregationServer.lamportClock.wallTime()),
+                SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    // Records that a content server pushed data at the given time
+    public synchronized void touch(String contentServerId, long timestamp) {
+        deadlines.addLast(new Deadline(contentServerId, timestamp));
+    }
+
+    // Expires every content server whose deadline has passed, returning how many stations were removed
+    public int sweep(long currentTime) {
+        int removed = 0;
+        Deadline due;
+        while ((due = pollDue(currentTime)) != null) {
+            removed += AggregationServer.expire(due.contentServerId, due.timestamp);
+        }
+        return removed;
+    }
+
+    private synchronized Deadline pollDue(long currentTime) {
+        Deadline head = deadlines.peekFirst();
+        if (head == null || currentTime - head.timestamp <= timeLimit) {
+            return null;
+        }
+        return deadlines.pollFirst();
+    }
+
+    private static class Deadline {
+        final String contentServerId;
+        final long timestamp;
+
+        Deadline(String contentServerId, long timestamp) {
+            this.contentServerId = contentServerId;
+            this.timestamp = timestamp;
+        }
+    }
+}
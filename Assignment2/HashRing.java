@@ -0,0 +1,69 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent-hash ring mapping keys (content server ids) to nodes ("host:port"). Every node
+// is placed at many points of the ring, so keys spread evenly and adding or removing a node
+// only moves the keys between it and its neighbours, about 1/N of them.
+public class HashRing {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> nodes = new ArrayList<>();
+
+    public HashRing(Collection<String> nodes) {
+        for (String node : nodes) {
+            add(node);
+        }
+    }
+
+    public synchronized void add(String node) {
+        if (nodes.contains(node)) {
+            return;
+        }
+        nodes.add(node);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    public synchronized void remove(String node) {
+        if (nodes.remove(node)) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.remove(hash(node + "#" + i));
+            }
+        }
+    }
+
+    public synchronized String ownerOf(String key) {
+        if (ring.isEmpty()) {
+            throw new IllegalStateException("No nodes in the ring");
+        }
+        Map.Entry<Long, String> owner = ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    public synchronized List<String> nodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    // First 8 bytes of MD5: not for security, just well spread and stable across JVMs
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM ships MD5
+        }
+    }
+}
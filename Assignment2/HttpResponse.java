@@ -0,0 +1,84 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A response from the aggregation server as seen by Client and ContentServer.
+// The body is framed by Content-Length when present (so the connection can be
+// reused), otherwise read until the server closes, and decoded if compressed.
+public class HttpResponse {
+
+    private final String statusLine;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    private HttpResponse(String statusLine, Map<String, String> headers, byte[] body) {
+        this.statusLine = statusLine;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    // Reads the next response, or returns null if the connection closed before one started
+    public static HttpResponse read(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            return null;
+        }
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        String length = headers.get("Content-Length");
+        byte[] raw = length != null ? in.readNBytes(Integer.parseInt(length)) : in.readAllBytes();
+        String coding = headers.get("Content-Encoding");
+        byte[] body = coding == null ? raw : Compression.decode(new ByteArrayInputStream(raw), coding).readAllBytes();
+        return new HttpResponse(statusLine, headers, body);
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    public String getStatusLine() {
+        return statusLine;
+    }
+
+    public int getStatusCode() {
+        String[] parts = statusLine.split(" ");
+        return parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+    }
+
+    // Header lookup is case-insensitive
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    // Decoded body bytes
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getBodyText() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.function.LongSupplier;
+
+// Hybrid logical clock: wall-clock milliseconds in the upper 48 bits and a logical counter in the
+// lower 16, packed into one long. Timestamps order exactly like Lamport times, so every user of the
+// clock works unchanged, but they never fall behind the wall clock, so a timestamp also tells when
+// an event happened, and they never go backwards when the wall clock is stepped back.
+// Selected with java -Dclock=hybrid AggregationServer ...
+public class HybridLogicalClock extends LamportClock {
+
+    static final int LOGICAL_BITS = 16;
+    // How far a received timestamp may be ahead of the local wall clock, in milliseconds. Merging
+    // one further ahead would push every later last-seen time forward as much and delay expiry,
+    // so the clocks of the machines involved must agree to within this.
+    static final long MAX_DRIFT = 500;
+
+    private final LongSupplier wallClock;
+
+    public HybridLogicalClock() {
+        this(System::currentTimeMillis);
+    }
+
+    HybridLogicalClock(LongSupplier wallClock) {
+        this.wallClock = wallClock;
+    }
+
+    @Override
+    public void increaseTime() {
+        // The counter only runs within one millisecond; a full counter carries into the next one
+        currentTime.updateAndGet(current -> Math.max(current + 1, wallClock.getAsLong() << LOGICAL_BITS));
+    }
+
+    @Override
+    public boolean accepts(long receivedTime) {
+        return super.accepts(receivedTime) && wallTime(receivedTime) <= wallClock.getAsLong() + MAX_DRIFT;
+    }
+
+    @Override
+    public void updateTime(long receivedTime) {
+        currentTime.accumulateAndGet(receivedTime,
+                (current, received) -> Math.max(Math.max(current, received) + 1, wallClock.getAsLong() << LOGICAL_BITS));
+    }
+
+    // Never earlier than the latest timestamp, so last-seen times of content servers never move backwards
+    @Override
+    public long wallTime() {
+        return Math.max(wallClock.getAsLong(), wallTime(getTime()));
+    }
+
+    // The wall-clock milliseconds a timestamp of this clock was taken at
+    public static long wallTime(long timestamp) {
+        return timestamp >>> LOGICAL_BITS;
+    }
+}
@@ -1,25 +1,36 @@
-public class LamportClock
-{
-        private int currentTime;
-
-        public LamportClock() {
-            this.currentTime = 0;
-        }
-
-        public synchronized int getTime() {
-        return currentTime;
-         }
-
-        public synchronized void increaseTime() {
-            currentTime++;
-        }
-
-        public synchronized void updateTime(int receivedTime) {
-            currentTime = Math.max(currentTime, receivedTime) + 1;
-        }
-
-
-}
-
-
-
+import java.util.concurrent.atomic.AtomicLong;
+
+// Logical time shared by every handler thread. Lock-free: reads never block, and ticks and merges
+// are single compare-and-set operations that only retry when another thread moved the clock in
+// between. 64 bits wide, so it does not wrap in the lifetime of a server as long as received times
+// are checked with accepts() first.
+public class LamportClock {
+
+    // Larger received times are refused, so a merge can never wrap the clock negative and half the
+    // range is left for local ticks
+    static final long MAX_RECEIVED = Long.MAX_VALUE / 2;
+
+    protected final AtomicLong currentTime = new AtomicLong();
+
+    public long getTime() {
+        return currentTime.get();
+    }
+
+    public void increaseTime() {
+        currentTime.incrementAndGet();
+    }
+
+    // Whether a time received from another process may be passed to updateTime
+    public boolean accepts(long receivedTime) {
+        return receivedTime >= 0 && receivedTime <= MAX_RECEIVED;
+    }
+
+    public void updateTime(long receivedTime) {
+        currentTime.accumulateAndGet(receivedTime, (current, received) -> Math.max(current, received) + 1);
+    }
+
+    // Wall-clock milliseconds to stamp local events with, e.g. when a content server was last seen
+    public long wallTime() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,325 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a running aggregation server with a mix of GET /, GET /{id} and content server PUTs over
+// many kept-alive connections, for capacity planning of the aggregation tier.
+//
+// With a target rate every connection sends on a fixed schedule instead of waiting for the previous
+// response, and response times are measured from the scheduled send time. A stalled server therefore
+// shows up as the latency every queued request would have seen, not as a single slow request
+// (coordinated omission). Service times, from the actual send to the response, are reported alongside.
+// A rate of 0 runs closed loop, each connection sending as fast as responses come back.
+// PUT bodies use the binary record encoding, like a content server's, unless json is given.
+public class LoadGenerator {
+
+    private static final String USAGE = "Usage: java LoadGenerator <host> <port> [connections] [requests/s, 0 = closed loop]"
+            + " [seconds] [get%/id%/put%] [records per put] [binary|json]";
+    private static final String[] OPERATIONS = {"GET /", "GET /{id}", "PUT"};
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println(USAGE);
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        double rate = args.length > 3 ? Double.parseDouble(args[3]) : 1000;
+        double seconds = args.length > 4 ? Double.parseDouble(args[4]) : 30;
+        int[] weights = parseMix(args.length > 5 ? args[5] : "70/20/10");
+        int recordsPerPut = args.length > 6 ? Integer.parseInt(args[6]) : 10;
+        boolean binary = args.length <= 7 || !args[7].equalsIgnoreCase("json");
+        if (weights == null) {
+            System.out.println("The mix needs a non-negative percentage for each of " + String.join(", ", OPERATIONS)
+                    + ", not all of them 0");
+            System.out.println(USAGE);
+            return;
+        }
+
+        // Connections are spread evenly over the schedule; each owns the stations of one content server
+        long interval = rate > 0 ? (long) (connections * 1e9 / rate) : 0;
+        List<Worker> workers = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            workers.add(new Worker(host, port, "load" + c, connections, recordsPerPut, weights, binary));
+        }
+        for (Worker worker : workers) {
+            worker.seed();
+        }
+        long start = System.nanoTime() + 10_000_000;
+        long end = start + (long) (seconds * 1e9);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            Worker worker = workers.get(c);
+            long first = start + interval * c / connections;
+            Thread thread = new Thread(() -> worker.run(first, interval, end), "load-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        LatencyHistogram[] response = new LatencyHistogram[OPERATIONS.length + 1];
+        LatencyHistogram[] service = new LatencyHistogram[OPERATIONS.length + 1];
+        for (int i = 0; i < response.length; i++) {
+            response[i] = new LatencyHistogram();
+            service[i] = new LatencyHistogram();
+        }
+        Map<Integer, Long> statuses = new TreeMap<>();
+        long errors = 0;
+        for (Worker worker : workers) {
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                response[op].add(worker.response[op]);
+                response[OPERATIONS.length].add(worker.response[op]);
+                service[op].add(worker.service[op]);
+                service[OPERATIONS.length].add(worker.service[op]);
+            }
+            worker.statuses.forEach((status, count) -> statuses.merge(status, count, Long::sum));
+            errors += worker.errors;
+        }
+
+        long requests = response[OPERATIONS.length].count();
+        System.out.printf("%d requests over %d connections in %.2f s: %.0f requests/s (target %s), %d connection errors%n",
+                requests, connections, elapsed, requests / elapsed, rate > 0 ? String.format("%.0f", rate) : "closed loop", errors);
+        System.out.println("Statuses: " + statuses);
+        if (rate > 0) {
+            print("Response time ms, from the scheduled send (corrected for coordinated omission)", response);
+        }
+        print("Service time ms, from the actual send", service);
+    }
+
+    // Cumulative weights of a get%/id%/put% mix, so a draw below the total picks an operation; null
+    // unless every operation has a non-negative weight and at least one of them is positive
+    private static int[] parseMix(String mix) {
+        String[] parts = mix.split("/");
+        if (parts.length != OPERATIONS.length) {
+            return null;
+        }
+        int[] weights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            int weight;
+            try {
+                weight = Integer.parseInt(parts[i].trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (weight < 0) {
+                return null;
+            }
+            weights[i] = weight + (i > 0 ? weights[i - 1] : 0);
+        }
+        return weights[weights.length - 1] > 0 ? weights : null;
+    }
+
+    private static void print(String title, LatencyHistogram[] histograms) {
+        System.out.println();
+        System.out.println(title);
+        StringBuilder header = new StringBuilder(String.format("%-10s %9s %8s", "", "count", "mean"));
+        for (double percentile : PERCENTILES) {
+            header.append(String.format(" %8s", "p" + (percentile == (long) percentile ? String.valueOf((long) percentile) : String.valueOf(percentile))));
+        }
+        System.out.println(header.append(String.format(" %8s", "max")));
+        for (int i = 0; i < histograms.length; i++) {
+            LatencyHistogram histogram = histograms[i];
+            StringBuilder row = new StringBuilder(String.format("%-10s %9d %8.2f",
+                    i < OPERATIONS.length ? OPERATIONS[i] : "all", histogram.count(), histogram.mean() / 1000));
+            for (double percentile : PERCENTILES) {
+                row.append(String.format(" %8.2f", histogram.percentile(percentile) / 1000.0));
+            }
+            System.out.println(row.append(String.format(" %8.2f", histogram.max() / 1000.0)));
+        }
+    }
+
+    private static final class Worker {
+        final String host;
+        final int port;
+        final String contentServerId;
+        final int connections;
+        final int recordsPerPut;
+        final int[] weights;
+        final boolean binary;
+        final LamportClock clock = new LamportClock();
+        final LatencyHistogram[] response = new LatencyHistogram[OPERATIONS.length];
+        final LatencyHistogram[] service = new LatencyHistogram[OPERATIONS.length];
+        final Map<Integer, Long> statuses = new TreeMap<>();
+        long errors;
+        Socket socket;
+        OutputStream out;
+        InputStream in;
+
+        Worker(String host, int port, String contentServerId, int connections, int recordsPerPut, int[] weights,
+               boolean binary) {
+            this.host = host;
+            this.port = port;
+            this.contentServerId = contentServerId;
+            this.connections = connections;
+            this.recordsPerPut = recordsPerPut;
+            this.weights = weights;
+            this.binary = binary;
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                response[i] = new LatencyHistogram();
+                service[i] = new LatencyHistogram();
+            }
+        }
+
+        // One untimed PUT up front, so GET /{id} finds stations from the first request on
+        void seed() throws IOException {
+            HttpResponse seeded = exchange(request(2));
+            if (seeded == null || seeded.getStatusCode() >= 300) {
+                throw new IOException("Seeding PUT failed: " + (seeded == null ? "connection closed" : seeded.getStatusLine()));
+            }
+        }
+
+        void run(long first, long interval, long end) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long scheduled = first;
+            while (true) {
+                long intended;
+                if (interval > 0) {
+                    intended = scheduled;
+                    scheduled += interval;
+                    if (intended >= end) {
+                        break;
+                    }
+                    // Requests that fall behind schedule are sent right away, without skipping any
+                    long wait;
+                    while ((wait = intended - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    intended = System.nanoTime();
+                    if (intended >= end) {
+                        break;
+                    }
+                }
+                int draw = random.nextInt(weights[weights.length - 1]);
+                int op = 0;
+                while (draw >= weights[op]) {
+                    op++;
+                }
+                long sent = System.nanoTime();
+                HttpResponse result;
+                try {
+                    result = exchange(request(op));
+                } catch (IOException e) {
+                    result = null;
+                }
+                long done = System.nanoTime();
+                if (result == null) {
+                    errors++;
+                    close();
+                    continue;
+                }
+                statuses.merge(result.getStatusCode(), 1L, Long::sum);
+                response[op].record((done - intended) / 1000);
+                service[op].record((done - sent) / 1000);
+            }
+            close();
+        }
+
+        private byte[] request(int op) {
+            String head;
+            byte[] body = new byte[0];
+            if (op == 2) {
+                // The same body a content server pushes
+                JSONArray records = new JSONArray();
+                for (int i = 0; i < recordsPerPut; i++) {
+                    records.put(new JSONObject().put("id", contentServerId + "-" + i).put("name", "Adelaide (West Terrace /  ngayirdapira)")
+                            .put("state", "SA").put("air_temp", 13.3).put("press", 1023.9).put("wind_dir", "S"));
+                }
+                if (binary) {
+                    List<WeatherRecord> typed = new ArrayList<>();
+                    for (int i = 0; i < records.length(); i++) {
+                        typed.add(WeatherRecord.fromJSON(records.getJSONObject(i)));
+                    }
+                    body = BinaryRecords.encode(typed);
+                } else {
+                    body = records.toString().getBytes(StandardCharsets.UTF_8);
+                }
+                head = "PUT /weather.json HTTP/1.1\r\n"
+                        + "Content-Type: " + (binary ? BinaryRecords.CONTENT_TYPE : "application/json") + "\r\n"
+                        + "Content-Server-ID: " + contentServerId + "\r\n"
+                        + "Content-Length: " + body.length + "\r\n";
+            } else {
+                String path = "/";
+                if (op == 1) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    path = "/load" + random.nextInt(connections) + "-" + random.nextInt(recordsPerPut);
+                }
+                head = "GET " + path + " HTTP/1.1\r\n"
+                        + "Accept: " + BinaryRecords.CONTENT_TYPE + ", application/json;q=0.5\r\n";
+            }
+            head += "Host: " + host + "\r\n"
+                    + "Lamport-Clock: " + clock.getTime() + "\r\n"
+                    + "Connection: keep-alive\r\n"
+                    + "\r\n";
+            byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+            byte[] request = new byte[headBytes.length + body.length];
+            System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+            System.arraycopy(body, 0, request, headBytes.length, body.length);
+            return request;
+        }
+
+        // Reconnects once when the server closed the kept-alive connection; null when there is no response
+        private HttpResponse exchange(byte[] request) throws IOException {
+            boolean reused = socket != null;
+            HttpResponse result;
+            try {
+                result = send(request);
+            } catch (IOException e) {
+                if (!reused) {
+                    throw e;
+                }
+                result = null;
+            }
+            if (result == null && reused) {
+                close();
+                result = send(request);
+            }
+            if (result != null) {
+                String serverClock = result.getHeader("Lamport-Clock");
+                if (serverClock != null) {
+                    clock.updateTime(Long.parseLong(serverClock.trim()));
+                }
+            }
+            return result;
+        }
+
+        private HttpResponse send(byte[] request) throws IOException {
+            if (socket == null) {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                out = socket.getOutputStream();
+                in = new BufferedInputStream(socket.getInputStream());
+            }
+            out.write(request);
+            out.flush();
+            return HttpResponse.read(in);
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                socket = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Counters and latency histograms of the aggregation server, served by GET /metrics in the
+// Prometheus text format. Recording never takes a lock: counters and histogram buckets are
+// LongAdders, which stripe concurrent increments over cells and only add them up when scraped.
+public class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final ConcurrentHashMap<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> requestDurations = new ConcurrentHashMap<>();
+    private final Histogram parseDuration = new Histogram();
+    private final ConcurrentHashMap<String, Histogram> lockWaits = new ConcurrentHashMap<>();
+    private final LongAdder parsedRecords = new LongAdder();
+    private final LongAdder expiredContentServers = new LongAdder();
+    private final LongAdder expiredStations = new LongAdder();
+    // Values read when scraped, e.g. the store size
+    private final Map<String, Sampled> sampled = new ConcurrentHashMap<>();
+
+    public void request(String method, int status, long nanos) {
+        requests.computeIfAbsent(method + "\u0000" + status, k -> new LongAdder()).increment();
+        requestDurations.computeIfAbsent(method, k -> new Histogram()).record(nanos);
+    }
+
+    // Time spent reading and decoding one PUT body, excluding applying it
+    public void parsed(int records, long nanos) {
+        parsedRecords.add(records);
+        parseDuration.record(nanos);
+    }
+
+    public void lockWait(String lock, long nanos) {
+        lockWaits.computeIfAbsent(lock, k -> new Histogram()).record(nanos);
+    }
+
+    public void expired(int stations) {
+        expiredContentServers.increment();
+        expiredStations.add(stations);
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        sampled.put(name, new Sampled("gauge", help, value, false));
+    }
+
+    // A counter kept elsewhere, e.g. by the request logger
+    public void counter(String name, String help, LongSupplier value) {
+        sampled.put(name, new Sampled("counter", help, value, false));
+    }
+
+    // A counter of nanoseconds kept elsewhere, exported in seconds like the histograms
+    public void secondsCounter(String name, String help, LongSupplier nanos) {
+        sampled.put(name, new Sampled("counter", help, nanos, true));
+    }
+
+    public String scrape() {
+        StringBuilder text = new StringBuilder();
+        header(text, "weather_requests_total", "counter", "Requests handled, by method and response status");
+        new TreeMap<>(requests).forEach((key, count) -> {
+            int separator = key.indexOf('\u0000');
+            text.append("weather_requests_total{method=\"").append(key, 0, separator)
+                    .append("\",status=\"").append(key.substring(separator + 1)).append("\"} ").append(count.sum()).append('\n');
+        });
+        header(text, "weather_request_duration_seconds", "histogram", "Time from a parsed request head to the response, by method");
+        new TreeMap<>(requestDurations).forEach((method, histogram) ->
+                histogram.write(text, "weather_request_duration_seconds", "method=\"" + method + "\""));
+        header(text, "weather_put_parse_duration_seconds", "histogram", "Time spent reading and decoding a PUT body");
+        parseDuration.write(text, "weather_put_parse_duration_seconds", null);
+        header(text, "weather_put_parsed_records_total", "counter", "Records decoded from PUT bodies");
+        text.append("weather_put_parsed_records_total ").append(parsedRecords.sum()).append('\n');
+        header(text, "weather_lock_wait_seconds", "histogram",
+                "Time spent waiting for the commit lock, by side (read, write), and for content server stripes (stripe)");
+        new TreeMap<>(lockWaits).forEach((lock, histogram) ->
+                histogram.write(text, "weather_lock_wait_seconds", "lock=\"" + lock + "\""));
+        header(text, "weather_expired_content_servers_total", "counter", "Content servers expired for not pushing in time");
+        text.append("weather_expired_content_servers_total ").append(expiredContentServers.sum()).append('\n');
+        header(text, "weather_expired_stations_total", "counter", "Stations removed by expiry");
+        text.append("weather_expired_stations_total ").append(expiredStations.sum()).append('\n');
+        new TreeMap<>(sampled).forEach((name, metric) -> {
+            header(text, name, metric.type, metric.help);
+            text.append(name).append(' ');
+            if (metric.nanos) {
+                text.append(metric.value.getAsLong() / 1e9);
+            } else {
+                text.append(metric.value.getAsLong());
+            }
+            text.append('\n');
+        });
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    // Fixed buckets doubling from 50 microseconds to about 6.5 seconds, plus +Inf
+    static final class Histogram {
+        private static final long FIRST_BOUND_NANOS = 50_000;
+        private static final int BOUNDS = 18;
+
+        private final LongAdder[] buckets = new LongAdder[BOUNDS + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long steps = Math.max(0, nanos - 1) / FIRST_BOUND_NANOS;
+            int bucket = steps == 0 ? 0 : 64 - Long.numberOfLeadingZeros(steps);
+            buckets[Math.min(bucket, BOUNDS)].increment();
+            sumNanos.add(nanos);
+        }
+
+        // Prometheus buckets are cumulative; the scrape is not atomic, so the count is taken
+        // from the buckets themselves and always matches the +Inf bucket
+        void write(StringBuilder text, String name, String labels) {
+            String prefix = labels == null ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String bound = i < BOUNDS ? Double.toString((FIRST_BOUND_NANOS << i) / 1e9) : "+Inf";
+                text.append(name).append("_bucket{").append(prefix).append("le=\"").append(bound).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            String suffix = labels == null ? "" : "{" + labels + "}";
+            text.append(name).append("_sum").append(suffix).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            text.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    private static final class Sampled {
+        final String type;
+        final String help;
+        final LongSupplier value;
+        final boolean nanos;
+
+        Sampled(String type, String help, LongSupplier value, boolean nanos) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+            this.nanos = nanos;
+        }
+    }
+}
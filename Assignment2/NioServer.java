@@ -0,0 +1,423 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Selector based alternative to one HandlingClient thread per socket. A single thread
+// accepts connections and buffers requests; complete requests are handed to a fixed
+// worker pool which runs the same handlers as the threaded server. Kept-alive connections
+// are answered one request at a time, so pipelined requests get their responses in order.
+// Bodies larger than STREAM_THRESHOLD are not buffered whole: the worker starts on the
+// headers and pulls the body through a BodyPipe, which stops the selector reading from the
+// socket while PIPE_CAPACITY bytes are waiting for it. Such a worker waits for the client
+// between chunks, so streamed bodies run on a pool of their own and slow uploaders can never
+// hold up the workers that answer everything else.
+public class NioServer {
+
+    private static final int BACKLOG = 4096;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int STREAM_THRESHOLD = 64 * 1024;
+    private static final int PIPE_CAPACITY = 64 * 1024;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final ExecutorService streamWorkers;
+    // Connections whose response is ready; the selector thread switches them to writing
+    private final ConcurrentLinkedQueue<Connection> readyToWrite = new ConcurrentLinkedQueue<>();
+    // Streaming connections whose worker drained their pipe enough to read from the socket again
+    private final ConcurrentLinkedQueue<Connection> resumeReading = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    // Binds right away, so port 0 picks a free port that getPort() reports
+    public NioServer(int port, int workerCount) throws IOException {
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port), BACKLOG);
+        this.selector = Selector.open();
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        this.streamWorkers = Executors.newFixedThreadPool(Math.max(1, workerCount / 2));
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public void run() throws IOException {
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        long lastIdleCheck = System.currentTimeMillis();
+        while (running) {
+            selector.select(1000);
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck >= 1000) {
+                closeIdle(now);
+                lastIdleCheck = now;
+            }
+            Connection ready;
+            while ((ready = readyToWrite.poll()) != null) {
+                if (ready.key.isValid()) {
+                    ready.key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+            while ((ready = resumeReading.poll()) != null) {
+                if (ready.key.isValid() && ready.bodyRemaining > 0 && ready.response == null) {
+                    ready.key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                try {
+                    if (key.isAcceptable()) {
+                        accept(server);
+                    } else if (key.isReadable()) {
+                        read(key);
+                    } else if (key.isWritable()) {
+                        write(key);
+                    }
+                } catch (IOException e) {
+                    close(key);
+                } catch (RuntimeException e) {
+                    // A bug handling one connection must not stop the selector for all the others
+                    e.printStackTrace();
+                    close(key);
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            close(key);
+        }
+        selector.close();
+        workers.shutdown();
+        streamWorkers.shutdown();
+    }
+
+    // Stops accepting, closes every connection and lets run() return
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(key));
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        readBuffer.clear();
+        if (connection.bodyRemaining > 0) {
+            // Never past the streamed body, whatever follows it stays in the socket until the response is out
+            readBuffer.limit((int) Math.min(READ_BUFFER_SIZE, connection.bodyRemaining));
+        }
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close(key);
+            return;
+        }
+        readBuffer.flip();
+        connection.lastActivity = System.currentTimeMillis();
+        if (connection.bodyRemaining > 0) {
+            byte[] chunk = new byte[read];
+            readBuffer.get(chunk);
+            connection.bodyRemaining -= read;
+            if (!connection.pipe.offer(chunk) || connection.bodyRemaining == 0) {
+                key.interestOps(0);
+            }
+            return;
+        }
+        connection.append(readBuffer);
+        dispatchIfComplete(connection);
+    }
+
+    private void dispatchIfComplete(Connection connection) {
+        if (connection.isComplete()) {
+            if (connection.contentLength > STREAM_THRESHOLD && connection.pipe == null) {
+                connection.startStreaming(new BodyPipe(connection));
+            }
+            // Stop reading until the response has been written, or for now when the pipe is full
+            connection.key.interestOps(connection.bodyRemaining > 0 && !connection.pipe.isFull() ? SelectionKey.OP_READ : 0);
+            // A queued stream costs at most PIPE_CAPACITY, the selector stops reading it after that
+            (connection.pipe != null ? streamWorkers : workers).execute(() -> process(connection));
+        } else {
+            connection.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void process(Connection connection) {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try {
+            if (connection.rejection != null) {
+                // The request cannot be framed, so the rest of the connection cannot be either
+                connection.keepAlive = false;
+                response.writeBytes(("HTTP/1.1 " + connection.rejection + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            } else if (AggregationServer.HandlingClient.isEventStreamRequest(connection.headerLines())) {
+                subscribe(connection);
+                return;
+            } else {
+                connection.keepAlive = AggregationServer.HandlingClient.handleRequest(connection.headerLines(),
+                        connection.body(), response);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            connection.keepAlive = false;
+            response.reset();
+            response.writeBytes("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        connection.response = ByteBuffer.wrap(response.toByteArray());
+        readyToWrite.add(connection);
+        selector.wakeup();
+    }
+
+    // Hands the connection over to the subscription hub, which owns it from now on
+    private void subscribe(Connection connection) throws IOException {
+        connection.key.cancel();
+        AggregationServer.HandlingClient.startEventStream((SocketChannel) connection.key.channel());
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ((SocketChannel) key.channel()).write(connection.response);
+        connection.lastActivity = System.currentTimeMillis();
+        if (connection.response.hasRemaining()) {
+            return;
+        }
+        if (connection.keepAlive && connection.bodyRemaining == 0) {
+            // Move on to the next request, which may already be buffered if the client pipelines
+            connection.nextRequest();
+            dispatchIfComplete(connection);
+        } else {
+            close(key);
+        }
+    }
+
+    // Closes connections that are waiting for a request longer than the idle timeout
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection && key.isValid()
+                    && key.interestOps() == SelectionKey.OP_READ
+                    && now - ((Connection) attachment).lastActivity > AggregationServer.IDLE_TIMEOUT) {
+                close(key);
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection && ((Connection) key.attachment()).pipe != null) {
+            // Wakes a worker waiting for body bytes that will never come
+            ((Connection) key.attachment()).pipe.fail();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Request bytes of one connection, accumulated until the headers and body are complete
+    private static class Connection {
+        final SelectionKey key;
+        byte[] data = new byte[1024];
+        int length;
+        int headerEnd = -1;  // Index of the first body byte once the blank line was seen
+        int contentLength;
+        int scanned;
+        // Status line to answer with instead of handling the request, e.g. for a bad Content-Length
+        String rejection;
+        // Set while a body larger than STREAM_THRESHOLD is passed to the worker as it arrives
+        BodyPipe pipe;
+        long bodyRemaining;  // Bytes of the streamed body still to be read from the socket
+        volatile ByteBuffer response;
+        boolean keepAlive;
+        long lastActivity = System.currentTimeMillis();
+
+        Connection(SelectionKey key) {
+            this.key = key;
+        }
+
+        void append(ByteBuffer buffer) {
+            if (length + buffer.remaining() > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + buffer.remaining()));
+            }
+            int n = buffer.remaining();
+            buffer.get(data, length, n);
+            length += n;
+        }
+
+        boolean isComplete() {
+            if (headerEnd < 0) {
+                // Only scan the bytes that arrived since the last call
+                for (int i = Math.max(scanned, 1); i < length; i++) {
+                    if (data[i] == '\n' && (data[i - 1] == '\n'
+                            || (i >= 3 && data[i - 1] == '\r' && data[i - 2] == '\n'))) {
+                        headerEnd = i + 1;
+                        break;
+                    }
+                }
+                scanned = length;
+                if (headerEnd < 0) {
+                    if (length > AggregationServer.MAX_HEADER_SIZE) {
+                        // Answered without waiting for a blank line that may never come
+                        rejection = "431 Request Header Fields Too Large";
+                        headerEnd = length;
+                        return true;
+                    }
+                    return false;
+                }
+                // Matched case-insensitively like every other header, or the body would be read as the next request
+                long declared = AggregationServer.HandlingClient.contentLength(headerLines());
+                if (declared < 0) {
+                    rejection = "400 Bad Request";
+                    return true;
+                }
+                if (declared > AggregationServer.maxBodySize) {
+                    // Answer right away instead of buffering an oversized body; the
+                    // handler rejects it without reading anything
+                    return true;
+                }
+                contentLength = (int) declared;
+            }
+            return contentLength > STREAM_THRESHOLD || length - headerEnd >= contentLength;
+        }
+
+        // Moves the body bytes buffered so far into the pipe; the rest follows as it is read
+        void startStreaming(BodyPipe bodyPipe) {
+            int buffered = Math.min(contentLength, length - headerEnd);
+            bodyPipe.offer(Arrays.copyOfRange(data, headerEnd, headerEnd + buffered));
+            System.arraycopy(data, headerEnd + buffered, data, headerEnd, length - headerEnd - buffered);
+            length -= buffered;
+            pipe = bodyPipe;
+            bodyRemaining = contentLength - buffered;
+            contentLength = 0; // Nothing of the body is left in data
+        }
+
+        String[] headerLines() {
+            return new String(data, 0, headerEnd, StandardCharsets.UTF_8).trim().split("\r?\n");
+        }
+
+        InputStream body() {
+            if (pipe != null) {
+                return pipe;
+            }
+            return new ByteArrayInputStream(data, headerEnd, Math.min(contentLength, length - headerEnd));
+        }
+
+        // Drops the request that was just answered, keeping any bytes of the next one
+        void nextRequest() {
+            int start = Math.min(headerEnd + contentLength, length);
+            // Skip blank lines left between requests, e.g. the newline after a PUT body
+            while (start < length && (data[start] == '\r' || data[start] == '\n')) {
+                start++;
+            }
+            System.arraycopy(data, start, data, 0, length - start);
+            length -= start;
+            headerEnd = -1;
+            contentLength = 0;
+            scanned = 0;
+            pipe = null;
+            response = null;
+        }
+    }
+
+    // Body bytes on their way from the selector thread to a worker. The selector stops reading
+    // the socket once PIPE_CAPACITY bytes are waiting and the worker resumes it at half of that.
+    private final class BodyPipe extends InputStream {
+        private final Connection connection;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int offset;     // Read position in the first chunk
+        private int buffered;
+        private boolean paused;
+        private boolean failed;
+
+        BodyPipe(Connection connection) {
+            this.connection = connection;
+        }
+
+        // Selector thread: returns false when the selector has to stop reading for now
+        synchronized boolean offer(byte[] chunk) {
+            chunks.add(chunk);
+            buffered += chunk.length;
+            notifyAll();
+            paused = buffered >= PIPE_CAPACITY;
+            return !paused;
+        }
+
+        synchronized boolean isFull() {
+            return paused;
+        }
+
+        // Selector thread: the connection is closed, the rest of the body is not coming
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        // The handler frames the body by Content-Length, so it never reads past the end
+        @Override
+        public synchronized int read(byte[] buffer, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (chunks.isEmpty()) {
+                if (failed) {
+                    throw new EOFException("Connection closed before the end of the body");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the body");
+                }
+            }
+            byte[] first = chunks.peek();
+            int n = Math.min(len, first.length - offset);
+            System.arraycopy(first, offset, buffer, off, n);
+            offset += n;
+            if (offset == first.length) {
+                chunks.poll();
+                offset = 0;
+            }
+            buffered -= n;
+            if (paused && buffered <= PIPE_CAPACITY / 2) {
+                paused = false;
+                resumeReading.add(connection);
+                selector.wakeup();
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,675 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Replicated mode: the PUTs of several aggregation servers are ordered through a log agreed with
+// Paxos, so every replica applies the same batches in the same order and a write survives as long
+// as a majority of the replicas is up. Reads are served from each replica's own store.
+//
+// The messages follow Assignment3's Councillor and Proposer (PREPARE / PROMISE, ACCEPT / ACCEPTED,
+// DECIDE), with what a log needs on top: one Paxos instance per slot, ballot numbers so that two
+// proposers can never both win a slot, and hole filling for a replica that missed a DECIDE.
+// Every replica is both an acceptor and a proposer. PUTs that arrive while a slot is being agreed
+// on are combined into the next slot, the same way the write-ahead log shares one fsync.
+//
+// An acceptor that forgot a promise or an accepted value after a restart could let a second value
+// be chosen for a slot, so every PROMISE and ACCEPTED is only sent once the vote is durable in the
+// AcceptorLog (the write-ahead log, which shares the fsync between concurrent votes). A proposer
+// votes for its own ballot before sending it anywhere, so after a restart it never reuses a ballot
+// of a slot that may still be open. A replica that restarts recovers its store, the last slot it
+// applied and its votes from its own write-ahead log and learns the later slots from the others.
+// A replica that was down while the others trimmed the slots it is missing cannot catch up from the
+// log; it answers 503 until it is restarted from a copy of a current replica's data directory.
+// Without an AcceptorLog the votes live in memory only, which is safe as long as no replica restarts.
+public class PaxosLog {
+
+    // Applies one agreed batch to the local store, returning its write-ahead log sequence number
+    public interface Applier {
+        long apply(Map<String, List<WeatherRecord>> batch, long clock);
+
+        // Called once every entry of the slot was applied, so the position can be persisted with them
+        default void applied(long slot) {
+        }
+    }
+
+    // Makes votes survive a restart
+    public interface AcceptorLog {
+        // Queues the vote for the slot and returns its sequence number; called in vote order
+        long append(long slot, Vote vote);
+
+        // Blocks until the vote with the given sequence number is durable
+        void awaitDurable(long sequence) throws IOException;
+    }
+
+    // What this replica promised and accepted for one slot
+    public static final class Vote {
+        public final long promised;
+        public final long acceptedBallot;
+        public final String acceptedValue; // Null when nothing was accepted
+
+        public Vote(long promised, long acceptedBallot, String acceptedValue) {
+            this.promised = promised;
+            this.acceptedBallot = acceptedBallot;
+            this.acceptedValue = acceptedValue;
+        }
+    }
+
+    // No majority of the replicas could be reached, or they can no longer serve this replica
+    public static class QuorumException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public QuorumException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int TIMEOUT = 1000;
+    private static final int RETAINED_SLOTS = 4096;
+    private static final int MAX_ATTEMPTS = 20;
+    private static final String NONE = "-";
+
+    private final List<String> replicas;
+    private final int self;
+    private final int majority;
+    private final Applier applier;
+    private final AcceptorLog acceptorLog;
+    private final LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong proposals = new AtomicLong();
+    private final Object applyLock = new Object();
+    private final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "paxos");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocket serverSocket;
+    private volatile boolean stopped;
+    // Idle connections to every replica, see send()
+    private final List<ConcurrentLinkedQueue<Connection>> idle = new ArrayList<>();
+    private final Set<Socket> accepted = ConcurrentHashMap.newKeySet();
+
+    // Guarded by this
+    private final TreeMap<Long, Slot> slots = new TreeMap<>();
+    private long applied;          // Every slot up to this one has been applied, in order
+    private long trimmedBelow;     // Slots below this were applied and forgotten
+    private long round;
+    private boolean fillingHoles;
+
+    // Keeps votes in memory only
+    public PaxosLog(List<String> replicas, int self, Applier applier) {
+        this(replicas, self, -1, Map.of(), null, applier);
+    }
+
+    // Resumes after appliedSlot, the last slot already reflected in the store, with the votes
+    // recovered for the slots after it
+    public PaxosLog(List<String> replicas, int self, long appliedSlot, Map<Long, Vote> votes,
+                    AcceptorLog acceptorLog, Applier applier) {
+        this.replicas = replicas;
+        this.self = self;
+        this.majority = replicas.size() / 2 + 1;
+        this.applier = applier;
+        this.acceptorLog = acceptorLog;
+        this.applied = appliedSlot;
+        this.trimmedBelow = appliedSlot + 1;
+        for (Map.Entry<Long, Vote> entry : votes.entrySet()) {
+            if (entry.getKey() > appliedSlot) {
+                Slot state = new Slot();
+                state.promised = entry.getValue().promised;
+                state.acceptedBallot = entry.getValue().acceptedBallot;
+                state.acceptedValue = entry.getValue().acceptedValue;
+                slots.put(entry.getKey(), state);
+                // Never propose a ballot again that this replica may already have sent for an open slot
+                observe(Math.max(state.promised, state.acceptedBallot));
+            }
+        }
+        for (int i = 0; i < replicas.size(); i++) {
+            idle.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    // Starts accepting messages from the other replicas and proposing this replica's PUTs
+    public void start() throws IOException {
+        String address = replicas.get(self);
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(Integer.parseInt(address.substring(address.lastIndexOf(':') + 1))));
+        Thread acceptor = new Thread(this::acceptLoop, "paxos-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread proposer = new Thread(this::proposeLoop, "paxos-proposer");
+        proposer.setDaemon(true);
+        proposer.start();
+    }
+
+    // Closes the listener and every connection, as if the replica had crashed
+    public void stop() throws IOException {
+        stopped = true;
+        serverSocket.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+        for (ConcurrentLinkedQueue<Connection> connections : idle) {
+            Connection connection;
+            while ((connection = connections.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    // Agrees on the batch with the other replicas and returns once it was applied here
+    public long replicate(Map<String, List<WeatherRecord>> batch, long clock) throws IOException {
+        Pending entry = new Pending(encode(batch, clock));
+        pending.add(entry);
+        try {
+            return entry.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replicating", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // "clock:<base64 of the binary encoding>". The binary encoding cannot carry a content server
+    // without records, so heartbeats are "clock:@<base64 of the content server id>".
+    private static String encode(Map<String, List<WeatherRecord>> batch, long clock) {
+        if (batch.size() == 1 && batch.values().iterator().next().isEmpty()) {
+            String contentServerId = batch.keySet().iterator().next();
+            return clock + ":@" + Base64.getEncoder().encodeToString(contentServerId.getBytes(StandardCharsets.UTF_8));
+        }
+        return clock + ":" + Base64.getEncoder().encodeToString(BinaryRecords.encode(batch));
+    }
+
+    public synchronized long getAppliedSlot() {
+        return applied;
+    }
+
+    private void proposeLoop() {
+        while (true) {
+            List<Pending> group = new ArrayList<>();
+            try {
+                group.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(group);
+            StringBuilder value = new StringBuilder(newProposalId()).append('|');
+            for (int i = 0; i < group.size(); i++) {
+                value.append(i == 0 ? "" : ",").append(group.get(i).entry);
+            }
+            try {
+                long sequence = awaitApplied(commit(value.toString()));
+                for (Pending entry : group) {
+                    entry.result.complete(sequence);
+                }
+            } catch (IOException e) {
+                for (Pending entry : group) {
+                    entry.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    // Unique per proposal, so two replicas proposing the same records can tell whose value won
+    private String newProposalId() {
+        return self + "." + proposals.incrementAndGet();
+    }
+
+    // Runs Paxos on free slots until the value wins one, returning that slot
+    private long commit(String value) throws IOException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long slot = nextFreeSlot();
+            if (decide(slot, value).equals(value)) {
+                return slot;
+            }
+            // Another replica's value took the slot, try the next one
+        }
+        throw new QuorumException("No slot won after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    // One Paxos instance: returns the value decided for the slot, which is ours unless another
+    // value had already been accepted by some replica
+    private String decide(long slot, String value) throws IOException {
+        while (true) {
+            long ballot = nextBallot();
+            String proposal = value;
+            long highestAccepted = -1;
+            int promises = 0;
+            int answered = 0;
+            for (String reply : broadcast("PREPARE " + slot + " " + ballot, true)) {
+                String[] parts = reply.split(" ", 5);
+                answered++;
+                if (parts[0].equals("DECIDED")) {
+                    learn(slot, parts[2]);
+                    return parts[2];
+                } else if (parts[0].equals("PROMISE")) {
+                    promises++;
+                    long accepted = Long.parseLong(parts[3]);
+                    if (accepted > highestAccepted && !parts[4].equals(NONE)) {
+                        highestAccepted = accepted;
+                        proposal = parts[4];
+                    }
+                } else if (parts[0].equals("REJECTED")) {
+                    observe(Long.parseLong(parts[2]));
+                } else if (parts[0].equals("TRIMMED")) {
+                    throw new QuorumException("Slot " + slot + " was already trimmed by another replica; restart this"
+                            + " replica from a copy of a current replica's data directory");
+                } else {
+                    throw new QuorumException("Replica cannot serve slot " + slot + ": " + reply);
+                }
+            }
+            if (answered < majority) {
+                throw new QuorumException("Only " + answered + " of " + replicas.size() + " replicas answered");
+            }
+            if (promises >= majority) {
+                int accepted = 0;
+                for (String reply : broadcast("ACCEPT " + slot + " " + ballot + " " + proposal, false)) {
+                    String[] parts = reply.split(" ", 3);
+                    if (parts[0].equals("DECIDED")) {
+                        learn(slot, parts[2]);
+                        return parts[2];
+                    } else if (parts[0].equals("ACCEPTED")) {
+                        accepted++;
+                    } else if (parts[0].equals("REJECTED")) {
+                        observe(Long.parseLong(parts[2]));
+                    }
+                }
+                if (accepted >= majority) {
+                    learn(slot, proposal);
+                    String decided = "DECIDE " + slot + " " + proposal;
+                    for (int i = 0; i < replicas.size(); i++) {
+                        if (i != self) {
+                            int replica = i;
+                            pool.execute(() -> send(replica, decided));
+                        }
+                    }
+                    return proposal;
+                }
+            }
+            // Lost to a higher ballot; back off a little so competing proposers stop colliding
+            sleep(ThreadLocalRandom.current().nextInt(1, 10));
+        }
+    }
+
+    // Sends the message to every replica, itself included, and returns the replies of the first
+    // majority that answers, or of every replica that answered when fewer did. With selfFirst this
+    // replica's own vote is durable before the message leaves it.
+    private List<String> broadcast(String message, boolean selfFirst) throws IOException {
+        CompletionService<String> replies = new ExecutorCompletionService<>(pool);
+        List<String> answered = new ArrayList<>();
+        int pending = 0;
+        if (selfFirst) {
+            answered.add(handle(message));
+        }
+        for (int i = 0; i < replicas.size(); i++) {
+            int replica = i;
+            if (replica != self || !selfFirst) {
+                replies.submit(() -> replica == self ? handle(message) : send(replica, message));
+                pending++;
+            }
+        }
+        for (int i = 0; i < pending && answered.size() < majority; i++) {
+            try {
+                Future<String> reply = replies.poll(TIMEOUT * 2L, TimeUnit.MILLISECONDS);
+                if (reply == null) {
+                    break;
+                }
+                if (reply.get() != null) {
+                    answered.add(reply.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // Counts as no answer
+            }
+        }
+        return answered;
+    }
+
+    // Like Proposer.sendMessage, one line out and one line back, but over kept-alive connections
+    // so a busy log does not open three sockets per slot. Null when the replica is unreachable.
+    private String send(int replica, String message) {
+        while (true) {
+            Connection connection = idle.get(replica).poll();
+            boolean reused = connection != null;
+            try {
+                if (connection == null) {
+                    connection = new Connection(replicas.get(replica));
+                }
+                connection.out.println(message);
+                String reply = connection.in.readLine();
+                if (reply == null) {
+                    throw new IOException("Replica closed the connection");
+                }
+                idle.get(replica).add(connection);
+                return reply;
+            } catch (SocketTimeoutException e) {
+                connection.close();
+                return null;
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.close();
+                }
+                if (!reused) {
+                    return null;
+                }
+                // Idle connections to a replica that restarted are closed; a DECIDE lost on one would
+                // leave it waiting for the next slot, so try again
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                accepted.add(socket);
+                if (stopped) {
+                    // Accepted while stop() was closing the others, which may have missed it
+                    accepted.remove(socket);
+                    socket.close();
+                    continue;
+                }
+                pool.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // Closed by stop()
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            socket.setTcpNoDelay(true);
+            String message;
+            // A message read while stopping is not answered, so the sender retries on another connection
+            while ((message = in.readLine()) != null && !stopped) {
+                out.println(handle(message));
+            }
+        } catch (IOException e) {
+            // The proposer gave up on this replica, or a vote could not be made durable and must not be sent
+        } finally {
+            accepted.remove(socket);
+        }
+    }
+
+    // Acceptor side of one message
+    String handle(String message) throws IOException {
+        String[] parts = message.split(" ", 4);
+        long slot = Long.parseLong(parts[1]);
+        if (parts[0].equals("DECIDE")) {
+            learn(slot, parts[2]);
+            return "OK";
+        }
+        String reply;
+        long sequence = -1;
+        synchronized (this) {
+            if (slot < trimmedBelow) {
+                return "TRIMMED " + slot;
+            }
+            Slot state = slots.computeIfAbsent(slot, k -> new Slot());
+            if (state.decided != null) {
+                return "DECIDED " + slot + " " + state.decided;
+            }
+            long ballot = Long.parseLong(parts[2]);
+            if (parts[0].equals("PREPARE")) {
+                if (ballot <= state.promised) {
+                    return "REJECTED " + slot + " " + state.promised;
+                }
+                state.promised = ballot;
+                reply = "PROMISE " + slot + " " + ballot + " " + state.acceptedBallot + " "
+                        + (state.acceptedValue == null ? NONE : state.acceptedValue);
+            } else if (parts[0].equals("ACCEPT")) {
+                if (ballot < state.promised) {
+                    return "REJECTED " + slot + " " + state.promised;
+                }
+                state.promised = ballot;
+                state.acceptedBallot = ballot;
+                state.acceptedValue = parts[3];
+                reply = "ACCEPTED " + slot + " " + ballot;
+            } else {
+                return "UNKNOWN " + slot;
+            }
+            // Queued under the monitor so the log replays the votes of a slot in the order they were cast
+            if (acceptorLog != null) {
+                sequence = acceptorLog.append(slot, new Vote(state.promised, state.acceptedBallot, state.acceptedValue));
+            }
+        }
+        // Other votes share the fsync instead of queueing behind it on the monitor
+        if (acceptorLog != null) {
+            acceptorLog.awaitDurable(sequence);
+        }
+        return reply;
+    }
+
+    // Records a decided value and applies every slot that is now complete, in order
+    private void learn(long slot, String value) {
+        boolean holes;
+        synchronized (this) {
+            if (slot < trimmedBelow) {
+                return;
+            }
+            Slot state = slots.computeIfAbsent(slot, k -> new Slot());
+            if (state.decided != null) {
+                return;
+            }
+            state.decided = value;
+        }
+        synchronized (applyLock) {
+            while (true) {
+                long next;
+                String decided;
+                synchronized (this) {
+                    next = applied + 1;
+                    Slot state = slots.get(next);
+                    if (state == null || state.decided == null) {
+                        break;
+                    }
+                    decided = state.decided;
+                }
+                long sequence = apply(decided);
+                applier.applied(next);
+                synchronized (this) {
+                    slots.get(next).sequence = sequence;
+                    applied = next;
+                    if (next - RETAINED_SLOTS >= trimmedBelow) {
+                        slots.headMap(next - RETAINED_SLOTS).clear();
+                        trimmedBelow = next - RETAINED_SLOTS;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+        synchronized (this) {
+            // A later slot was decided while an earlier one is still open, e.g. this replica
+            // missed its DECIDE; fill the hole, which also recovers a value accepted there
+            holes = !fillingHoles && slots.lastKey() > applied + 1 && hasDecidedAfter(applied + 1);
+            fillingHoles |= holes;
+        }
+        if (holes) {
+            pool.execute(this::fillHoles);
+        }
+    }
+
+    private void fillHoles() {
+        try {
+            while (true) {
+                long hole;
+                synchronized (this) {
+                    if (!hasDecidedAfter(applied + 1)) {
+                        fillingHoles = false;
+                        return;
+                    }
+                    hole = applied + 1;
+                }
+                decide(hole, newProposalId() + "|");
+            }
+        } catch (IOException e) {
+            System.err.println("Could not fill a hole in the replicated log: " + e.getMessage());
+            synchronized (this) {
+                fillingHoles = false;
+            }
+        }
+    }
+
+    private boolean hasDecidedAfter(long slot) {
+        for (Slot state : slots.tailMap(slot, false).values()) {
+            if (state.decided != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Applies every entry of a decided value; returns the last log sequence number
+    private long apply(String value) {
+        String entries = value.substring(value.indexOf('|') + 1);
+        long sequence = 0;
+        if (entries.isEmpty()) {
+            return sequence; // A hole filled with nothing
+        }
+        for (String entry : entries.split(",")) {
+            int colon = entry.indexOf(':');
+            long clock = Long.parseLong(entry.substring(0, colon));
+            Map<String, List<WeatherRecord>> batch = new LinkedHashMap<>();
+            if (entry.charAt(colon + 1) == '@') {
+                String contentServerId = new String(Base64.getDecoder().decode(entry.substring(colon + 2)), StandardCharsets.UTF_8);
+                applier.apply(Map.of(contentServerId, List.of()), clock);
+                continue;
+            }
+            try {
+                BinaryRecordReader reader = new BinaryRecordReader(
+                        new ByteArrayInputStream(Base64.getDecoder().decode(entry.substring(colon + 1))), "");
+                while (reader.next()) {
+                    batch.computeIfAbsent(reader.contentServerId(), k -> new ArrayList<>()).add(reader.record());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Corrupt replicated entry", e); // Encoded by a replica, cannot happen
+            }
+            sequence = Math.max(sequence, applier.apply(batch, clock));
+        }
+        return sequence;
+    }
+
+    private synchronized long nextFreeSlot() {
+        long slot = applied + 1;
+        while (slots.containsKey(slot) && slots.get(slot).decided != null) {
+            slot++;
+        }
+        return slot;
+    }
+
+    // Blocks until the slot and everything before it was applied here
+    private synchronized long awaitApplied(long slot) throws IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT * 10L;
+        while (applied < slot) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new QuorumException("Slot " + slot + " was decided but earlier slots never completed");
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for slot " + slot, e);
+            }
+        }
+        Slot state = slots.get(slot);
+        return state == null ? 0 : state.sequence;
+    }
+
+    // Ballots are unique per replica: the round in the high bits, the replica index in the low byte
+    private synchronized long nextBallot() {
+        return (++round << 8) | self;
+    }
+
+    private synchronized void observe(long ballot) {
+        round = Math.max(round, ballot >> 8);
+    }
+
+    private static void sleep(int milliseconds) {
+        try {
+            Thread.sleep(milliseconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Slot {
+        long promised = -1;
+        long acceptedBallot = -1;
+        String acceptedValue;
+        String decided;
+        long sequence;
+    }
+
+    private static final class Connection {
+        final Socket socket = new Socket();
+        final PrintWriter out;
+        final BufferedReader in;
+
+        Connection(String address) throws IOException {
+            int colon = address.lastIndexOf(':');
+            try {
+                socket.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))), TIMEOUT);
+                if (socket.getLocalSocketAddress().equals(socket.getRemoteSocketAddress())) {
+                    // TCP lets a connection to a free local port pick that port and connect to itself,
+                    // which would echo our own messages back and keep a restarting replica from binding
+                    throw new ConnectException("Replica is down: connected to itself");
+                }
+                socket.setSoTimeout(TIMEOUT);
+                socket.setTcpNoDelay(true);
+                out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class Pending {
+        final String entry;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        Pending(String entry) {
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compares the JSON and binary PUT encodings: body size, decode throughput and bytes
+// allocated per decoded record, using the same readers the aggregation server uses.
+//
+// Usage: java ProtocolBenchmark [records] [rounds]
+public class ProtocolBenchmark {
+
+    private static long lastAllocated; // Bytes the last timed run allocated on this thread
+
+    private interface ReaderFactory {
+        RecordReader open() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        List<WeatherRecord> records = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            records.add(WeatherRecord.fromJSON(new JSONObject()
+                    .put("id", "IDS" + (60901 + i)).put("name", "Adelaide (West Terrace /  ngayirdapira)")
+                    .put("state", "SA").put("time_zone", "CST").put("lat", -34.9).put("lon", 138.6)
+                    .put("local_date_time", "15/04:00pm").put("local_date_time_full", "20230715160000")
+                    .put("air_temp", 13.3 + i % 10).put("apparent_t", 9.5).put("cloud", "Partly cloudy")
+                    .put("dewpt", 5.7).put("press", 1023.9).put("rel_hum", 60.0).put("wind_dir", "S")
+                    .put("wind_spd_kmh", 15.0).put("wind_spd_kt", 8.0)));
+        }
+        byte[] json = WeatherRecord.toJSONString(records).getBytes(StandardCharsets.UTF_8);
+        byte[] binary = BinaryRecords.encode(records);
+        System.out.printf("%d records: JSON %d bytes, binary %d bytes (%.0f%%)%n",
+                count, json.length, binary.length, 100.0 * binary.length / json.length);
+
+        for (int round = 0; round < rounds; round++) {
+            // The first half of the rounds warms up the JIT, only the last round is reported
+            long jsonNanos = time(() -> new RecordStreamReader(new ByteArrayInputStream(json), "cs"), count);
+            long jsonAllocated = lastAllocated;
+            long binaryNanos = time(() -> new BinaryRecordReader(new ByteArrayInputStream(binary), "cs"), count);
+            long binaryAllocated = lastAllocated;
+            if (round == rounds - 1) {
+                report("JSON", jsonNanos, jsonAllocated, count);
+                report("binary", binaryNanos, binaryAllocated, count);
+            }
+        }
+    }
+
+    private static long time(ReaderFactory factory, int expected) throws IOException {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        RecordReader reader = factory.open();
+        int decoded = 0;
+        while (reader.next()) {
+            decoded++;
+        }
+        long elapsed = System.nanoTime() - start;
+        lastAllocated = allocatedBytes() - allocatedBefore;
+        if (decoded != expected) {
+            throw new IllegalStateException("Decoded " + decoded + " of " + expected + " records");
+        }
+        return elapsed;
+    }
+
+    private static void report(String name, long nanos, long allocated, int count) {
+        System.out.printf("%-6s %8.1f ms  %10.0f records/s  %6d bytes allocated per record%n",
+                name, nanos / 1e6, count / (nanos / 1e9), allocated / count);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
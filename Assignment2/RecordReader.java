@@ -0,0 +1,13 @@
+import java.io.IOException;
+
+// Pulls the records of a PUT body one at a time, whatever its encoding
+public interface RecordReader {
+
+    // Advances to the next record, returning false once the body is exhausted
+    boolean next() throws IOException;
+
+    // Content server the current record belongs to
+    String contentServerId();
+
+    WeatherRecord record();
+}
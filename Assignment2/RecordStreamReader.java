@@ -0,0 +1,124 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+// Pull parser for PUT bodies. Records are read one at a time straight from the
+// socket, so only the record being parsed is held in memory, never the whole body.
+// Accepts the same two shapes as a buffered PUT: an array of records for the
+// request's content server, or an object mapping content server ids to arrays.
+public class RecordStreamReader implements RecordReader {
+
+    private final JSONTokener tokener;
+    private final boolean batched;
+    private String contentServerId;
+    private WeatherRecord record;
+    private boolean inArray;
+    private boolean finished;
+
+    public RecordStreamReader(InputStream body, String defaultContentServerId) throws IOException {
+        this.tokener = new JSONTokener(new InputStreamReader(body, StandardCharsets.UTF_8));
+        try {
+            char first = tokener.nextClean();
+            if (first == '[') {
+                batched = false;
+                contentServerId = defaultContentServerId;
+                inArray = true;
+                finished = closesArray();
+            } else if (first == '{') {
+                batched = true;
+                finished = !nextServer();
+            } else {
+                throw tokener.syntaxError("Expected a JSON array or object");
+            }
+        } catch (JSONException e) {
+            throw unwrap(e);
+        }
+    }
+
+    // The tokener reports a failing stream as a JSONException; a lost connection or a body over
+    // the size limit is not a syntax error, so it is passed on as the IOException it was
+    private static JSONException unwrap(JSONException e) throws IOException {
+        if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+        }
+        return e;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        try {
+            return advance();
+        } catch (JSONException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private boolean advance() {
+        while (!finished) {
+            if (inArray) {
+                Object value = tokener.nextValue();
+                if (!(value instanceof JSONObject)) {
+                    throw tokener.syntaxError("Expected a weather record object");
+                }
+                record = WeatherRecord.fromJSON((JSONObject) value);
+                char separator = tokener.nextClean();
+                if (separator == ']') {
+                    inArray = false;
+                } else if (separator != ',') {
+                    throw tokener.syntaxError("Expected ',' or ']'");
+                }
+                return true;
+            }
+            if (!batched) {
+                finished = true;
+            } else {
+                char separator = tokener.nextClean();
+                if (separator == '}') {
+                    finished = true;
+                } else if (separator != ',' || !nextServer()) {
+                    throw tokener.syntaxError("Expected ',' or '}'");
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String contentServerId() {
+        return contentServerId;
+    }
+
+    @Override
+    public WeatherRecord record() {
+        return record;
+    }
+
+    // Reads `"id": [` of the next content server in a batch, false at the closing brace
+    private boolean nextServer() {
+        char c = tokener.nextClean();
+        if (c == '}') {
+            return false;
+        }
+        tokener.back();
+        Object key = tokener.nextValue();
+        if (!(key instanceof String) || tokener.nextClean() != ':' || tokener.nextClean() != '[') {
+            throw tokener.syntaxError("Expected \"content server id\": [records]");
+        }
+        contentServerId = (String) key;
+        inArray = !closesArray();
+        return true;
+    }
+
+    private boolean closesArray() throws JSONException {
+        if (tokener.nextClean() == ']') {
+            return true;
+        }
+        tokener.back();
+        return false;
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Client-side copy of the last response for each server and path, so a repeated read can send
+// If-None-Match and reuse the body when the server answers 304 Not Modified. Entries live in memory
+// and, when a directory is given, also in one file per entry so separate Client runs share them.
+// Entity tags are only meaningful to the server that issued them, so the server is part of the key.
+public class ResponseCache {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Path directory;
+
+    public ResponseCache() {
+        this(null);
+    }
+
+    // A null directory keeps the cache in memory only
+    public ResponseCache(Path directory) {
+        this.directory = directory;
+    }
+
+    // The cached response of the server ("host:port") for the path, or null when there is none
+    public Entry get(String server, String path) {
+        String key = server + path;
+        Entry entry = entries.get(key);
+        if (entry == null && directory != null) {
+            try {
+                entry = Entry.decode(Files.readAllBytes(fileOf(key)));
+                entries.put(key, entry);
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                // A damaged file only costs a full download
+                System.err.println("Ignoring cache file for " + key + ": " + e.getMessage());
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    public void put(String server, String path, Entry entry) throws IOException {
+        String key = server + path;
+        entries.put(key, entry);
+        if (directory != null) {
+            Files.createDirectories(directory);
+            // Written aside and moved into place, so a concurrent run never reads half an entry
+            Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+            Files.write(temporary, entry.encode());
+            Files.move(temporary, fileOf(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private Path fileOf(String key) {
+        return directory.resolve(URLEncoder.encode(key, StandardCharsets.UTF_8) + ".cache");
+    }
+
+    public static final class Entry {
+        private final String etag;
+        private final long lamportClock;
+        private final String contentType;
+        private final byte[] body;
+
+        public Entry(String etag, long lamportClock, String contentType, byte[] body) {
+            this.etag = etag;
+            this.lamportClock = lamportClock;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        // The server's Lamport-Clock when the body was fetched
+        public long getLamportClock() {
+            return lamportClock;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        // Decoded body bytes
+        public byte[] getBody() {
+            return body;
+        }
+
+        private byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(etag);
+            out.writeLong(lamportClock);
+            out.writeUTF(contentType);
+            out.writeInt(body.length);
+            out.write(body);
+            return bytes.toByteArray();
+        }
+
+        private static Entry decode(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            String etag = in.readUTF();
+            long lamportClock = in.readLong();
+            String contentType = in.readUTF();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(etag, lamportClock, contentType, body);
+        }
+    }
+}
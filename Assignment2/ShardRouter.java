@@ -0,0 +1,287 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Sharded deployment: several aggregation servers split the content servers between them with
+// a consistent-hash ring over content server ids, so a content server's stations, its expiry and
+// its write ordering all stay on one node. Any node accepts any request: PUT records owned by
+// other nodes are forwarded to them, and reads that need the whole aggregate are scattered to
+// every node and gathered here.
+//
+// Requests between nodes carry LOCAL_HEADER or FORWARDED_HEADER so they are answered from
+// the receiving node's own data and never routed again.
+public class ShardRouter {
+
+    // Records could not be forwarded to the node that owns them
+    public static class ForwardException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ForwardException(String node, IOException cause) {
+            super("Forwarding to " + node + " failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    public static final String LOCAL_HEADER = "Shard-Local";
+    public static final String FORWARDED_HEADER = "Shard-Forwarded";
+    private static final int TIMEOUT = 5000;
+
+    private final String self;
+    private volatile HashRing ring;
+    private final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "shard-router");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ShardRouter(String self, List<String> nodes) {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("Shard list " + nodes + " does not contain this node " + self);
+        }
+        this.self = self;
+        this.ring = new HashRing(nodes);
+    }
+
+    // Comma separated host:port entries; throws IllegalArgumentException for an empty list or a
+    // malformed entry, since a ring without nodes cannot own anything
+    public static List<String> parseNodes(String nodes) {
+        List<String> parsed = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            node = node.trim();
+            int colon = node.lastIndexOf(':');
+            if (colon <= 0 || !node.substring(colon + 1).matches("\\d{1,5}")) {
+                throw new IllegalArgumentException("Not a host:port: " + node);
+            }
+            parsed.add(node);
+        }
+        return parsed;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public List<String> nodes() {
+        return ring.nodes();
+    }
+
+    public String ownerOf(String contentServerId) {
+        return ring.ownerOf(contentServerId);
+    }
+
+    public boolean isLocal(String contentServerId) {
+        return self.equals(ring.ownerOf(contentServerId));
+    }
+
+    // Swaps in a new membership; the caller hands off the content servers that moved away.
+    // A node missing from the new list is leaving and hands off everything.
+    public void setNodes(List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A shard ring needs at least one node");
+        }
+        ring = new HashRing(nodes);
+    }
+
+    // Wraps a PUT body so only the records this node owns come out of it. The others are held
+    // back per owning node and sent on whenever batchSize of them are waiting, so memory stays
+    // bounded like for local records; forward() sends the rest.
+    public Split split(RecordReader reader, int batchSize) {
+        return new Split(reader, batchSize);
+    }
+
+    public class Split implements RecordReader {
+        private final RecordReader reader;
+        private final int batchSize;
+        private final Map<String, Map<String, List<WeatherRecord>>> remote = new LinkedHashMap<>();
+        private final Map<String, Integer> held = new HashMap<>();
+        private int forwarded;
+
+        Split(RecordReader reader, int batchSize) {
+            this.reader = reader;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (reader.next()) {
+                String owner = ring.ownerOf(reader.contentServerId());
+                if (owner.equals(self)) {
+                    return true;
+                }
+                remote.computeIfAbsent(owner, k -> new LinkedHashMap<>())
+                        .computeIfAbsent(reader.contentServerId(), k -> new ArrayList<>()).add(reader.record());
+                if (held.merge(owner, 1, Integer::sum) >= batchSize) {
+                    flush(owner);
+                }
+            }
+            return false;
+        }
+
+        private void flush(String owner) throws ForwardException {
+            Map<String, List<WeatherRecord>> groups = remote.remove(owner);
+            int count = held.remove(owner);
+            try {
+                send(owner, groups, AggregationServer.lamportClock.getTime());
+            } catch (IOException e) {
+                throw new ForwardException(owner, e);
+            }
+            forwarded += count;
+        }
+
+        @Override
+        public String contentServerId() {
+            return reader.contentServerId();
+        }
+
+        @Override
+        public WeatherRecord record() {
+            return reader.record();
+        }
+
+        // Sends the records still held back to their owners, returning how many were forwarded in all
+        public int forward() throws ForwardException {
+            for (String owner : new ArrayList<>(remote.keySet())) {
+                flush(owner);
+            }
+            return forwarded;
+        }
+    }
+
+    // PUTs records to the node that owns their content servers, in the binary encoding
+    public void send(String node, Map<String, List<WeatherRecord>> groups, long clock) throws IOException {
+        byte[] body = BinaryRecords.encode(groups);
+        String head = "PUT /weather.json HTTP/1.1\r\n"
+                + "Host: " + node + "\r\n"
+                + "Content-Type: " + BinaryRecords.CONTENT_TYPE + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Lamport-Clock: " + clock + "\r\n"
+                + FORWARDED_HEADER + ": true\r\n"
+                + "\r\n";
+        HttpResponse response = exchange(node, head, body);
+        if (response.getStatusCode() != 200) {
+            throw new IOException("Shard " + node + " answered " + response.getStatusLine());
+        }
+    }
+
+    // Passes a content server's heartbeat on to its node; false when that node no longer knows it
+    public boolean heartbeat(String node, String contentServerId, long clock) throws IOException {
+        String head = "PUT /heartbeat HTTP/1.1\r\n"
+                + "Host: " + node + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "Lamport-Clock: " + clock + "\r\n"
+                + "Content-Server-ID: " + contentServerId + "\r\n"
+                + FORWARDED_HEADER + ": true\r\n"
+                + "\r\n";
+        HttpResponse response = exchange(node, head, null);
+        if (response.getStatusCode() != 200 && response.getStatusCode() != 404) {
+            throw new IOException("Shard " + node + " answered " + response.getStatusLine());
+        }
+        return response.getStatusCode() == 200;
+    }
+
+    // Sends the same GET to every other node in parallel; fails if any of them does not answer 200
+    public List<HttpResponse> gather(String target, String accept, long clock) throws IOException {
+        List<Future<HttpResponse>> pending = new ArrayList<>();
+        for (String node : ring.nodes()) {
+            if (!node.equals(self)) {
+                pending.add(pool.submit(() -> get(node, target, accept, clock)));
+            }
+        }
+        List<HttpResponse> responses = new ArrayList<>();
+        for (Future<HttpResponse> future : pending) {
+            HttpResponse response = await(future);
+            if (response.getStatusCode() != 200) {
+                throw new IOException("Shard answered " + response.getStatusLine() + " for " + target);
+            }
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    // Asks the other nodes in parallel and returns the first 200 response, or null if none has it
+    public HttpResponse findFirst(String target, String accept, long clock) throws IOException {
+        List<Future<HttpResponse>> pending = new ArrayList<>();
+        for (String node : ring.nodes()) {
+            if (!node.equals(self)) {
+                pending.add(pool.submit(() -> get(node, target, accept, clock)));
+            }
+        }
+        HttpResponse found = null;
+        for (Future<HttpResponse> future : pending) {
+            HttpResponse response = await(future);
+            if (found == null && response.getStatusCode() == 200) {
+                found = response;
+            }
+        }
+        return found;
+    }
+
+    private HttpResponse get(String node, String target, String accept, long clock) throws IOException {
+        String head = "GET " + target + " HTTP/1.1\r\n"
+                + "Host: " + node + "\r\n"
+                + "Lamport-Clock: " + clock + "\r\n"
+                + (accept != null ? "Accept: " + accept + "\r\n" : "")
+                + LOCAL_HEADER + ": true\r\n"
+                + "\r\n";
+        return exchange(node, head, null);
+    }
+
+    // Forwards a membership change to another node
+    public void announce(String node, byte[] body, long clock) throws IOException {
+        String head = "PUT /cluster HTTP/1.1\r\n"
+                + "Host: " + node + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Lamport-Clock: " + clock + "\r\n"
+                + FORWARDED_HEADER + ": true\r\n"
+                + "\r\n";
+        HttpResponse response = exchange(node, head, body);
+        if (response.getStatusCode() != 200) {
+            throw new IOException("Shard " + node + " answered " + response.getStatusLine());
+        }
+    }
+
+    // One request per connection; the other node's Lamport time is merged into ours
+    private static HttpResponse exchange(String node, String head, byte[] body) throws IOException {
+        int colon = node.lastIndexOf(':');
+        try (Socket socket = new Socket(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)))) {
+            socket.setSoTimeout(TIMEOUT);
+            OutputStream out = socket.getOutputStream();
+            out.write(head.getBytes(StandardCharsets.UTF_8));
+            if (body != null) {
+                out.write(body);
+            }
+            out.flush();
+            HttpResponse response = HttpResponse.read(new BufferedInputStream(socket.getInputStream()));
+            if (response == null) {
+                throw new IOException("Shard " + node + " closed the connection without answering");
+            }
+            String clock = response.getHeader("Lamport-Clock");
+            if (clock != null) {
+                AggregationServer.lamportClock.updateTime(Long.parseLong(clock));
+            }
+            return response;
+        }
+    }
+
+    private static HttpResponse await(Future<HttpResponse> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a shard", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+}
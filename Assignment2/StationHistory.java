@@ -0,0 +1,211 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Recent history of every station's numeric readings, for trend charts. Each station keeps
+// a ring of its last raw readings plus rolling min/max/avg buckets at one minute and one hour
+// resolution. All of it lives in primitive arrays allocated once per station, so memory per
+// station is fixed no matter how often it reports: about 25 KB with the default sizes, which is
+// why the server only keeps history when started with java -Dhistory=on AggregationServer ...
+public class StationHistory {
+
+    public static final String[] FIELDS = {
+            "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+    private static final long MINUTE = 60_000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private final int rawCapacity;
+    private final int minuteBuckets;
+    private final int hourBuckets;
+    private final ConcurrentHashMap<String, Series> stations = new ConcurrentHashMap<>();
+
+    // Defaults: 120 raw readings, the last hour by minute and the last day by hour
+    public StationHistory() {
+        this(120, 60, 24);
+    }
+
+    public StationHistory(int rawCapacity, int minuteBuckets, int hourBuckets) {
+        this.rawCapacity = rawCapacity;
+        this.minuteBuckets = minuteBuckets;
+        this.hourBuckets = hourBuckets;
+    }
+
+    public void record(WeatherRecord record, long time) {
+        stations.computeIfAbsent(record.getId(), id -> new Series()).add(record, time);
+    }
+
+    // Forgets stations that left the store, so history does not outlive them
+    public void remove(List<String> stationIds) {
+        for (String id : stationIds) {
+            stations.remove(id);
+        }
+    }
+
+    public boolean contains(String stationId) {
+        return stations.containsKey(stationId);
+    }
+
+    // Points of one station, oldest first, at "raw", "minute" or "hour" resolution, restricted
+    // to the given fields (all when null). Returns null for an unknown station.
+    public JSONArray points(String stationId, String resolution, List<String> fields) {
+        Series series = stations.get(stationId);
+        if (series == null) {
+            return null;
+        }
+        int[] columns = columns(fields);
+        switch (resolution) {
+            case "raw":
+                return series.raw(columns);
+            case "minute":
+                return series.aggregates(series.minute, columns);
+            case "hour":
+                return series.aggregates(series.hour, columns);
+            default:
+                throw new IllegalArgumentException("Unknown resolution: " + resolution);
+        }
+    }
+
+    private static int[] columns(List<String> fields) {
+        if (fields == null) {
+            int[] all = new int[FIELDS.length];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        int[] columns = new int[fields.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = indexOf(fields.get(i));
+        }
+        return columns;
+    }
+
+    private static int indexOf(String field) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(field)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No history for field: " + field);
+    }
+
+    // One station; readings of a station may come from several content servers, hence synchronized
+    private class Series {
+        final long[] times = new long[rawCapacity];
+        final double[] values = new double[rawCapacity * FIELDS.length]; // Row per reading
+        long count;
+        final Buckets minute = new Buckets(minuteBuckets, MINUTE);
+        final Buckets hour = new Buckets(hourBuckets, HOUR);
+
+        synchronized void add(WeatherRecord record, long time) {
+            int row = (int) (count % rawCapacity);
+            times[row] = time;
+            for (int field = 0; field < FIELDS.length; field++) {
+                double value = record.getNumber(FIELDS[field]);
+                values[row * FIELDS.length + field] = value;
+                if (!Double.isNaN(value)) {
+                    minute.add(time, field, value);
+                    hour.add(time, field, value);
+                }
+            }
+            count++;
+        }
+
+        synchronized JSONArray raw(int[] columns) {
+            JSONArray points = new JSONArray();
+            for (long i = Math.max(0, count - rawCapacity); i < count; i++) {
+                int row = (int) (i % rawCapacity);
+                JSONObject point = new JSONObject().put("time", times[row]);
+                for (int field : columns) {
+                    double value = values[row * FIELDS.length + field];
+                    if (!Double.isNaN(value)) {
+                        point.put(FIELDS[field], value);
+                    }
+                }
+                points.put(point);
+            }
+            return points;
+        }
+
+        synchronized JSONArray aggregates(Buckets buckets, int[] columns) {
+            return buckets.points(columns);
+        }
+    }
+
+    // Rolling aggregates over fixed-width time buckets; a slot is reused once its bucket ages out
+    private class Buckets {
+        final long width;
+        final long[] start;      // Bucket number held by each slot, -1 while unused
+        final double[] min;
+        final double[] max;
+        final double[] sum;
+        final int[] counts;
+
+        Buckets(int slots, long width) {
+            this.width = width;
+            this.start = new long[slots];
+            Arrays.fill(start, -1);
+            this.min = new double[slots * FIELDS.length];
+            this.max = new double[slots * FIELDS.length];
+            this.sum = new double[slots * FIELDS.length];
+            this.counts = new int[slots * FIELDS.length];
+        }
+
+        // Called with the series lock held
+        void add(long time, int field, double value) {
+            long bucket = time / width;
+            int slot = (int) (bucket % start.length);
+            if (start[slot] != bucket) {
+                if (start[slot] > bucket) {
+                    return; // Older than anything the ring still covers
+                }
+                start[slot] = bucket;
+                int from = slot * FIELDS.length;
+                Arrays.fill(counts, from, from + FIELDS.length, 0);
+                Arrays.fill(sum, from, from + FIELDS.length, 0);
+            }
+            int cell = slot * FIELDS.length + field;
+            if (counts[cell] == 0) {
+                min[cell] = value;
+                max[cell] = value;
+            } else {
+                min[cell] = Math.min(min[cell], value);
+                max[cell] = Math.max(max[cell], value);
+            }
+            sum[cell] += value;
+            counts[cell]++;
+        }
+
+        // Called with the series lock held
+        JSONArray points(int[] columns) {
+            long newest = -1;
+            for (long bucket : start) {
+                newest = Math.max(newest, bucket);
+            }
+            JSONArray points = new JSONArray();
+            if (newest < 0) {
+                return points;
+            }
+            // Only buckets within the last `slots` widths, oldest first
+            for (long bucket = Math.max(0, newest - start.length + 1); bucket <= newest; bucket++) {
+                int slot = (int) (bucket % start.length);
+                if (start[slot] != bucket) {
+                    continue; // Nothing was reported during that interval
+                }
+                JSONObject point = new JSONObject().put("time", bucket * width);
+                for (int field : columns) {
+                    int cell = slot * FIELDS.length + field;
+                    if (counts[cell] > 0) {
+                        point.put(FIELDS[field], new JSONObject().put("min", min[cell]).put("max", max[cell])
+                                .put("avg", sum[cell] / counts[cell]).put("count", counts[cell]));
+                    }
+                }
+                points.put(point);
+            }
+            return points;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Secondary indexes over the station store, so filtered reads only visit likely matches:
+// a hash index on state, a grid of one degree cells over lat/lon, and sorted indexes on
+// the numeric observations.
+//
+// StationStore updates an entry while holding that station's slot, so the indexes of one
+// station never interleave. Readers may still see an index a moment ahead of or behind the
+// store; they treat index results as candidates and check each record again.
+public class StationIndex {
+
+    private static final String[] NUMERIC_FIELDS = {
+            "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+
+    private final ConcurrentHashMap<String, Set<String>> byState = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Set<String>> byCell = new ConcurrentHashMap<>();
+    private final Map<String, ConcurrentSkipListMap<Double, Set<String>>> byNumber = new HashMap<>();
+
+    public StationIndex() {
+        for (String field : NUMERIC_FIELDS) {
+            byNumber.put(field, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    public static boolean isIndexedNumber(String field) {
+        for (String indexed : NUMERIC_FIELDS) {
+            if (indexed.equals(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void add(String id, WeatherRecord record) {
+        String state = record.getState();
+        if (state != null) {
+            addTo(byState, state, id);
+        }
+        Long cell = cellOf(record);
+        if (cell != null) {
+            addTo(byCell, cell, id);
+        }
+        for (Map.Entry<String, ConcurrentSkipListMap<Double, Set<String>>> index : byNumber.entrySet()) {
+            double value = numberOf(record, index.getKey());
+            if (!Double.isNaN(value)) {
+                addTo(index.getValue(), value, id);
+            }
+        }
+    }
+
+    public void remove(String id, WeatherRecord record) {
+        String state = record.getState();
+        if (state != null) {
+            removeFrom(byState, state, id);
+        }
+        Long cell = cellOf(record);
+        if (cell != null) {
+            removeFrom(byCell, cell, id);
+        }
+        for (Map.Entry<String, ConcurrentSkipListMap<Double, Set<String>>> index : byNumber.entrySet()) {
+            double value = numberOf(record, index.getKey());
+            if (!Double.isNaN(value)) {
+                removeFrom(index.getValue(), value, id);
+            }
+        }
+    }
+
+    // Ids of the stations that may match, taken from whichever index yields the fewest,
+    // or null when the query has no indexed predicate and every station has to be checked
+    public Collection<String> candidates(StationQuery query) {
+        Collection<String> best = null;
+        if (query.getState() != null) {
+            best = new ArrayList<>(byState.getOrDefault(query.getState(), Set.of()));
+        }
+        if (query.getBox() != null) {
+            best = smaller(best, inBox(query.getBox(), limit(best)));
+        }
+        for (Map.Entry<String, double[]> range : query.getRanges().entrySet()) {
+            double[] bounds = range.getValue();
+            best = smaller(best, collect(byNumber.get(range.getKey())
+                    .subMap(bounds[0] + 0.0, true, bounds[1] + 0.0, true).values(), limit(best)));
+        }
+        return best;
+    }
+
+    private Collection<String> inBox(double[] box, int limit) {
+        long minLat = (long) Math.floor(box[0]);
+        long minLon = (long) Math.floor(box[1]);
+        long maxLat = (long) Math.floor(box[2]);
+        long maxLon = (long) Math.floor(box[3]);
+        if (minLat > maxLat || minLon > maxLon) {
+            return new ArrayList<>();
+        }
+        double cellCount = (double) (maxLat - minLat + 1) * (maxLon - minLon + 1);
+        List<Set<String>> cells = new ArrayList<>();
+        if (cellCount <= byCell.size()) {
+            for (long lat = minLat; lat <= maxLat; lat++) {
+                for (long lon = minLon; lon <= maxLon; lon++) {
+                    Set<String> ids = byCell.get(cellKey(lat, lon));
+                    if (ids != null) {
+                        cells.add(ids);
+                    }
+                }
+            }
+        } else {
+            // A box wider than the populated area: walk the populated cells instead
+            for (Map.Entry<Long, Set<String>> cell : byCell.entrySet()) {
+                long lat = cell.getKey() >> 32;
+                long lon = (int) (long) cell.getKey();
+                if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon) {
+                    cells.add(cell.getValue());
+                }
+            }
+        }
+        return collect(cells, limit);
+    }
+
+    // Flattens the id sets, giving up (null) once there are more than `limit` ids
+    private static Collection<String> collect(Collection<Set<String>> sets, int limit) {
+        List<String> ids = new ArrayList<>();
+        for (Set<String> set : sets) {
+            for (String id : set) {
+                if (ids.size() == limit) {
+                    return null;
+                }
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static Collection<String> smaller(Collection<String> best, Collection<String> candidate) {
+        return candidate == null ? best : candidate;
+    }
+
+    private static int limit(Collection<String> best) {
+        return best == null ? Integer.MAX_VALUE : best.size();
+    }
+
+    // Adding 0.0 folds -0.0 into 0.0, which the sorted index would otherwise order apart
+    private static double numberOf(WeatherRecord record, String field) {
+        return record.getNumber(field) + 0.0;
+    }
+
+    private static Long cellOf(WeatherRecord record) {
+        double lat = record.getLat();
+        double lon = record.getLon();
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            return null;
+        }
+        return cellKey((long) Math.floor(lat), (long) Math.floor(lon));
+    }
+
+    private static long cellKey(long lat, long lon) {
+        return (lat << 32) | (lon & 0xffffffffL);
+    }
+
+    private static <K> void addTo(ConcurrentMap<K, Set<String>> index, K key, String id) {
+        index.compute(key, (k, ids) -> {
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+            }
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    private static <K> void removeFrom(ConcurrentMap<K, Set<String>> index, K key, String id) {
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+}
@@ -0,0 +1,117 @@
+import org.json.JSONObject;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A filtered read parsed from the query string of GET /, for example
+// ?state=SA&bbox=-40,130,-30,140&air_temp=10..20&fields=id,name,air_temp
+//
+// Every predicate must hold. bbox is minLat,minLon,maxLat,maxLon and numeric ranges are
+// inclusive, with either end left open ("10.." or "..20"). fields projects the result.
+public class StationQuery {
+
+    private String state;
+    private double[] box;
+    private final Map<String, double[]> ranges = new LinkedHashMap<>();
+    private String[] fields;
+
+    // Throws IllegalArgumentException for unknown parameters and malformed values
+    public static StationQuery parse(String queryString) {
+        StationQuery query = new StationQuery();
+        for (String pair : queryString.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Malformed parameter: " + pair);
+            }
+            String name = pair.substring(0, equals);
+            String value = URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            if (name.equals("state")) {
+                query.state = value;
+            } else if (name.equals("bbox")) {
+                String[] corners = value.split(",");
+                if (corners.length != 4) {
+                    throw new IllegalArgumentException("bbox needs minLat,minLon,maxLat,maxLon");
+                }
+                query.box = new double[4];
+                for (int i = 0; i < 4; i++) {
+                    query.box[i] = Double.parseDouble(corners[i].trim());
+                }
+            } else if (name.equals("fields")) {
+                query.fields = value.split(",");
+            } else if (StationIndex.isIndexedNumber(name)) {
+                int dots = value.indexOf("..");
+                if (dots < 0) {
+                    double exact = Double.parseDouble(value);
+                    query.ranges.put(name, new double[]{exact, exact});
+                } else {
+                    String low = value.substring(0, dots).trim();
+                    String high = value.substring(dots + 2).trim();
+                    query.ranges.put(name, new double[]{
+                            low.isEmpty() ? Double.NEGATIVE_INFINITY : Double.parseDouble(low),
+                            high.isEmpty() ? Double.POSITIVE_INFINITY : Double.parseDouble(high)});
+                }
+                double[] range = query.ranges.get(name);
+                // Also rejects NaN, which no index lookup can take
+                if (!(range[0] <= range[1])) {
+                    throw new IllegalArgumentException("Empty range for " + name + ": " + value);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown query parameter: " + name);
+            }
+        }
+        return query;
+    }
+
+    public boolean matches(WeatherRecord record) {
+        if (state != null && !state.equals(record.getState())) {
+            return false;
+        }
+        if (box != null) {
+            double lat = record.getLat();
+            double lon = record.getLon();
+            // NaN fails every comparison, so records without coordinates never match
+            if (!(lat >= box[0] && lat <= box[2] && lon >= box[1] && lon <= box[3])) {
+                return false;
+            }
+        }
+        for (Map.Entry<String, double[]> range : ranges.entrySet()) {
+            double value = record.getNumber(range.getKey());
+            if (!(value >= range.getValue()[0] && value <= range.getValue()[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The JSON form of the record, reduced to the requested fields
+    public JSONObject project(WeatherRecord record) {
+        if (fields == null) {
+            return record.toJSON();
+        }
+        JSONObject projected = new JSONObject();
+        for (String field : fields) {
+            Object value = record.get(field);
+            if (value != null) {
+                projected.put(field, value);
+            }
+        }
+        return projected;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public double[] getBox() {
+        return box;
+    }
+
+    public Map<String, double[]> getRanges() {
+        return ranges;
+    }
+}
@@ -0,0 +1,211 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// Latest record of every station, keyed by station id so that lookups,
+// replacements and deletions no longer have to scan the whole aggregate.
+// Safe for concurrent use: lookups never block, and writers only contend
+// when they touch the same station.
+public class StationStore {
+
+    private final ConcurrentHashMap<String, Station> stations = new ConcurrentHashMap<>();
+    // Content server id -> stations it owns, so expiring a server is proportional to its stations.
+    // May briefly list a station another server has taken over; removals check the owner.
+    private final ConcurrentHashMap<String, Set<String>> ownedStations = new ConcurrentHashMap<>();
+    // Orders records by arrival so GET / keeps returning them in the order they were pushed
+    private final AtomicLong arrivals = new AtomicLong();
+    private final StationIndex index = new StationIndex();
+
+    // A copy of the station's record in JSON form, or null when the station is unknown
+    public JSONObject get(String id) {
+        Station station = stations.get(id);
+        return station == null ? null : station.record.toJSON();
+    }
+
+    public WeatherRecord getRecord(String id) {
+        Station station = stations.get(id);
+        return station == null ? null : station.record;
+    }
+
+    public void put(JSONObject record) {
+        put(record, record.getString("id"));
+    }
+
+    public void put(JSONObject record, String contentServerId) {
+        put(WeatherRecord.fromJSON(record), contentServerId);
+    }
+
+    public void put(WeatherRecord record, String contentServerId) {
+        String id = record.getId();
+        Station[] replaced = new Station[1];
+        // The secondary indexes are updated inside compute, so updates of one station never interleave
+        stations.compute(id, (k, current) -> {
+            if (current != null) {
+                index.remove(id, current.record);
+            }
+            index.add(id, record);
+            replaced[0] = current;
+            return new Station(record, contentServerId, arrivals.incrementAndGet());
+        });
+        Station previous = replaced[0];
+        if (previous != null && !previous.owner.equals(contentServerId)) {
+            disown(previous.owner, id);
+        }
+        ownedStations.compute(contentServerId, (k, ids) -> {
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+            }
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    public WeatherRecord remove(String id) {
+        Station[] removed = new Station[1];
+        stations.computeIfPresent(id, (k, current) -> {
+            index.remove(id, current.record);
+            removed[0] = current;
+            return null;
+        });
+        Station station = removed[0];
+        if (station == null) {
+            return null;
+        }
+        disown(station.owner, id);
+        return station.record;
+    }
+
+    // Drops every station last pushed by the given content server, returning the removed ids
+    public List<String> removeOwnedBy(String contentServerId) {
+        Set<String> ids = ownedStations.remove(contentServerId);
+        List<String> removed = new ArrayList<>();
+        if (ids == null) {
+            return removed;
+        }
+        for (String id : ids) {
+            boolean[] dropped = new boolean[1];
+            stations.computeIfPresent(id, (k, current) -> {
+                // Skip stations that another content server pushed in the meantime
+                if (!current.owner.equals(contentServerId)) {
+                    return current;
+                }
+                index.remove(id, current.record);
+                dropped[0] = true;
+                return null;
+            });
+            if (dropped[0]) {
+                removed.add(id);
+            }
+        }
+        return removed;
+    }
+
+    // Current records of the stations a content server owns
+    public List<WeatherRecord> recordsOwnedBy(String contentServerId) {
+        List<WeatherRecord> records = new ArrayList<>();
+        Set<String> ids = ownedStations.get(contentServerId);
+        if (ids != null) {
+            for (String id : ids) {
+                Station station = stations.get(id);
+                if (station != null && station.owner.equals(contentServerId)) {
+                    records.add(station.record);
+                }
+            }
+        }
+        return records;
+    }
+
+    private void disown(String contentServerId, String id) {
+        ownedStations.computeIfPresent(contentServerId, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    public String ownerOf(String id) {
+        Station station = stations.get(id);
+        return station == null ? id : station.owner;
+    }
+
+    public int size() {
+        return stations.size();
+    }
+
+    // Visits every record together with the content server that owns it, in arrival order
+    public void forEach(BiConsumer<WeatherRecord, String> action) {
+        for (Station station : ordered()) {
+            action.accept(station.record, station.owner);
+        }
+    }
+
+    // Stations matching the query in arrival order, visiting only the candidates the indexes yield
+    public JSONArray query(StationQuery query) {
+        Collection<String> candidates = index.candidates(query);
+        List<Station> matches = new ArrayList<>();
+        if (candidates == null) {
+            for (Station station : stations.values()) {
+                if (query.matches(station.record)) {
+                    matches.add(station);
+                }
+            }
+        } else {
+            for (String id : candidates) {
+                Station station = stations.get(id);
+                // Index entries may briefly lag the store, so every candidate is checked again
+                if (station != null && query.matches(station.record)) {
+                    matches.add(station);
+                }
+            }
+        }
+        matches.sort(Comparator.comparingLong(station -> station.arrival));
+        JSONArray array = new JSONArray();
+        for (Station station : matches) {
+            array.put(query.project(station.record));
+        }
+        return array;
+    }
+
+    public JSONArray toJSONArray() {
+        JSONArray array = new JSONArray();
+        for (Station station : ordered()) {
+            array.put(station.record.toJSON());
+        }
+        return array;
+    }
+
+    // Every record in arrival order; the records are immutable, so the list can be serialized later
+    public List<WeatherRecord> records() {
+        List<WeatherRecord> records = new ArrayList<>();
+        for (Station station : ordered()) {
+            records.add(station.record);
+        }
+        return records;
+    }
+
+    private List<Station> ordered() {
+        List<Station> list = new ArrayList<>(stations.values());
+        list.sort(Comparator.comparingLong(station -> station.arrival));
+        return list;
+    }
+
+    // Stored records are immutable and replaced as a whole, so they can be shared and serialized without a lock
+    private static final class Station {
+        final WeatherRecord record;
+        final String owner;
+        final long arrival;
+
+        Station(WeatherRecord record, String owner, long arrival) {
+            this.record = record;
+            this.owner = owner;
+            this.arrival = arrival;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Pushes committed station updates and expiries to subscribed clients as server-sent events.
+//
+// A single thread owns every subscriber connection through its own selector, so thousands of
+// subscribers cost memory rather than threads. Publishers and joining subscribers only append
+// to one inbound queue, so a subscriber is registered exactly between the events committed
+// before and after it joined; the hub thread fans each event out to bounded per-subscriber
+// queues and writes as much as every socket accepts. A subscriber that falls QUEUE_CAPACITY
+// events behind loses its backlog and gets one "overflow" event instead, after which it can
+// catch up with GET /?since=<last id>. When the hub itself falls INBOUND_CAPACITY events behind,
+// every subscriber gets that treatment.
+public class SubscriptionHub {
+
+    public static final int QUEUE_CAPACITY = 1024;
+    public static final int INBOUND_CAPACITY = 65536;
+    private static final long HEARTBEAT_INTERVAL = 15000;
+    private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Selector selector;
+    // Events as byte[], joining subscribers as Join, and the OVERFLOW marker, in commit order
+    private final ConcurrentLinkedQueue<Object> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inboundEvents = new AtomicInteger();
+    // Set once the inbound queue is full; events are dropped until the hub reaches the marker
+    private final AtomicBoolean overflowing = new AtomicBoolean();
+    private final AtomicLong inboundDropped = new AtomicLong();
+    private static final Object OVERFLOW = new Object();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    public SubscriptionHub() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "subscription-hub");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Called in commit order, with the Lamport time the batch was committed at
+    public void publishUpdates(long clock, Map<String, List<WeatherRecord>> batch) {
+        if (subscriberCount.get() == 0) {
+            return; // Nobody listens, skip serializing the records
+        }
+        for (List<WeatherRecord> records : batch.values()) {
+            for (WeatherRecord record : records) {
+                publish(event(clock, "update", record.toString()));
+            }
+        }
+        selector.wakeup();
+    }
+
+    public void publishExpiry(long clock, List<String> stationIds) {
+        if (subscriberCount.get() == 0) {
+            return;
+        }
+        for (String id : stationIds) {
+            publish(event(clock, "expire", new JSONObject().put("id", id).toString()));
+        }
+        selector.wakeup();
+    }
+
+    // Publishers are serialized by the change log's lock
+    private void publish(byte[] event) {
+        if (!overflowing.get()) {
+            if (inboundEvents.incrementAndGet() <= INBOUND_CAPACITY) {
+                inbound.add(event);
+                return;
+            }
+            inboundEvents.decrementAndGet();
+            overflowing.set(true);
+            inbound.add(OVERFLOW);
+        }
+        inboundDropped.incrementAndGet();
+    }
+
+    static byte[] event(long clock, String type, String data) {
+        return ("id: " + clock + "\nevent: " + type + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Takes over a connection and sends it the event stream's response head, then every event
+    // published after this call. Called under the change log's lock, see ChangeLog.subscribe.
+    public void subscribe(SocketChannel channel, byte[] headers) throws IOException {
+        channel.configureBlocking(false);
+        subscriberCount.incrementAndGet();
+        inbound.add(new Join(channel, headers));
+        selector.wakeup();
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    // Events discarded because their subscriber, or the hub itself, fell too far behind
+    public long getDroppedEvents() {
+        return droppedEvents.get() + inboundDropped.get();
+    }
+
+    private void run() {
+        long lastHeartbeat = System.currentTimeMillis();
+        while (true) {
+            try {
+                selector.select(HEARTBEAT_INTERVAL);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            Object next;
+            while ((next = inbound.poll()) != null) {
+                if (next instanceof byte[]) {
+                    inboundEvents.decrementAndGet();
+                    broadcast((byte[]) next);
+                } else if (next == OVERFLOW) {
+                    overflowing.set(false);
+                    long dropped = inboundDropped.getAndSet(0);
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid()) {
+                            ((Subscriber) key.attachment()).overflow(dropped);
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        }
+                    }
+                } else {
+                    Join join = (Join) next;
+                    try {
+                        // Writable right away for the response head
+                        join.channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, new Subscriber(join.headers));
+                    } catch (IOException e) {
+                        closeQuietly(join.channel);
+                        subscriberCount.decrementAndGet();
+                    }
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastHeartbeat >= HEARTBEAT_INTERVAL) {
+                // Lets proxies keep the stream open and surfaces dead peers as write errors
+                broadcast(HEARTBEAT);
+                lastHeartbeat = now;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        readBuffer.clear();
+                        if (((SocketChannel) key.channel()).read(readBuffer) < 0) {
+                            close(key);
+                            continue;
+                        }
+                        // Anything a subscriber sends is ignored
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(key);
+                    }
+                } catch (IOException e) {
+                    close(key);
+                }
+            }
+        }
+    }
+
+    private void broadcast(byte[] event) {
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            Subscriber subscriber = (Subscriber) key.attachment();
+            subscriber.offer(event);
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void flush(SelectionKey key) throws IOException {
+        Subscriber subscriber = (Subscriber) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (true) {
+            if (subscriber.current == null || !subscriber.current.hasRemaining()) {
+                byte[] next = subscriber.queue.poll();
+                if (next == null) {
+                    subscriber.current = null;
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                subscriber.current = ByteBuffer.wrap(next);
+            }
+            channel.write(subscriber.current);
+            if (subscriber.current.hasRemaining()) {
+                return; // Socket buffer is full, wait until it drains
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        closeQuietly((SocketChannel) key.channel());
+        subscriberCount.decrementAndGet();
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final class Join {
+        final SocketChannel channel;
+        final byte[] headers;
+
+        Join(SocketChannel channel, byte[] headers) {
+            this.channel = channel;
+            this.headers = headers;
+        }
+    }
+
+    // Events waiting for one subscriber; only touched by the hub thread
+    private class Subscriber {
+        final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        ByteBuffer current; // Partially written event, never dropped so the stream stays well-formed
+
+        Subscriber(byte[] headers) {
+            current = ByteBuffer.wrap(headers);
+        }
+
+        void offer(byte[] event) {
+            if (queue.size() >= QUEUE_CAPACITY) {
+                // Slow consumer: drop the backlog rather than buffer without bound or stall everyone else
+                overflow(0);
+            }
+            queue.add(event);
+        }
+
+        // Replaces the backlog with one overflow event counting it and the events lost before it
+        void overflow(long alsoDropped) {
+            int dropped = queue.size();
+            droppedEvents.addAndGet(dropped);
+            queue.clear();
+            queue.add(("event: overflow\ndata: {\"dropped\":" + (dropped + alsoDropped) + "}\n\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,424 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// One station's observation as stored by the aggregation server. The fields ContentServer
+// knows about are held as primitives and strings instead of a JSONObject's map of boxed values,
+// and the few distinct values of state, time_zone, cloud and wind_dir are interned, so a
+// record costs a fraction of the heap. JSON is only produced when a response is written.
+//
+// Records are immutable and shared between the store, its indexes and the change log.
+public final class WeatherRecord {
+
+    private static final InternTable INTERNED = new InternTable();
+    private static final int EXTRAS_SHIFT = 17;
+    private static final int EXTRAS_BIT = 1 << EXTRAS_SHIFT;
+
+    // JSON names of the typed fields, in the order they are written
+    private static final String[] TEXT_FIELDS = {
+            "id", "name", "state", "time_zone", "local_date_time", "local_date_time_full", "cloud", "wind_dir"};
+    private static final String[] NUMBER_FIELDS = {
+            "lat", "lon", "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+
+    // Numbers that were absent from the pushed record are NaN, which JSON cannot carry anyway
+    private final String id;
+    private final String name;
+    private final String state;
+    private final String timeZone;
+    private final double lat;
+    private final double lon;
+    private final String localDateTime;
+    private final String localDateTimeFull;
+    private final double airTemp;
+    private final double apparentT;
+    private final String cloud;
+    private final double dewpt;
+    private final double press;
+    private final double relHum;
+    private final String windDir;
+    private final double windSpdKmh;
+    private final double windSpdKt;
+    // Fields outside the schema, or with an unexpected type, kept as pushed; usually null
+    private final JSONObject extras;
+
+    public static WeatherRecord fromJSON(JSONObject json) {
+        if (!(json.opt("id") instanceof String)) {
+            throw new JSONException("Record without a string id");
+        }
+        JSONObject other = null;
+        String[] text = new String[TEXT_FIELDS.length];
+        double[] numbers = new double[NUMBER_FIELDS.length];
+        Arrays.fill(numbers, Double.NaN);
+        for (String key : json.keySet()) {
+            Object value = json.get(key);
+            int textSlot = textSlot(key);
+            int numberSlot = numberSlot(key);
+            if (textSlot >= 0 && value instanceof String) {
+                text[textSlot] = (String) value;
+            } else if (numberSlot >= 0 && value instanceof Number) {
+                numbers[numberSlot] = ((Number) value).doubleValue();
+            } else {
+                if (other == null) {
+                    other = new JSONObject();
+                }
+                other.put(key, value);
+            }
+        }
+        return new WeatherRecord(text, numbers, other);
+    }
+
+    // Copies the values out, the arrays may be reused by the caller
+    private WeatherRecord(String[] text, double[] numbers, JSONObject other) {
+        this.id = text[0];
+        this.name = text[1];
+        this.state = intern(text[2]);
+        this.timeZone = intern(text[3]);
+        this.localDateTime = text[4];
+        this.localDateTimeFull = text[5];
+        this.cloud = intern(text[6]);
+        this.windDir = intern(text[7]);
+        this.lat = numbers[0];
+        this.lon = numbers[1];
+        this.airTemp = numbers[2];
+        this.apparentT = numbers[3];
+        this.dewpt = numbers[4];
+        this.press = numbers[5];
+        this.relHum = numbers[6];
+        this.windSpdKmh = numbers[7];
+        this.windSpdKt = numbers[8];
+        this.extras = other;
+    }
+
+    // For parsers that collect the typed fields themselves, see BulkLoader; the arrays are copied
+    static WeatherRecord of(String[] text, double[] numbers) {
+        if (text[0] == null) {
+            throw new JSONException("Record without a string id");
+        }
+        return new WeatherRecord(text, numbers, null);
+    }
+
+    static int textSlot(String key) {
+        switch (key) {
+            case "id": return 0;
+            case "name": return 1;
+            case "state": return 2;
+            case "time_zone": return 3;
+            case "local_date_time": return 4;
+            case "local_date_time_full": return 5;
+            case "cloud": return 6;
+            case "wind_dir": return 7;
+            default: return -1;
+        }
+    }
+
+    static int numberSlot(String key) {
+        switch (key) {
+            case "lat": return 0;
+            case "lon": return 1;
+            case "air_temp": return 2;
+            case "apparent_t": return 3;
+            case "dewpt": return 4;
+            case "press": return 5;
+            case "rel_hum": return 6;
+            case "wind_spd_kmh": return 7;
+            case "wind_spd_kt": return 8;
+            default: return -1;
+        }
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : value.intern();
+    }
+
+    static String[] textScratch() {
+        return new String[TEXT_FIELDS.length];
+    }
+
+    static double[] numberScratch() {
+        return new double[NUMBER_FIELDS.length];
+    }
+
+    // Binary form, see BinaryRecords: u32 length, u32 present fields, then the present fields
+    public void writeBinary(DataOutputStream out) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        DataOutputStream fields = new DataOutputStream(payload);
+        int present = 0;
+        for (int slot = 0; slot < TEXT_FIELDS.length; slot++) {
+            if (text(slot) != null) {
+                present |= 1 << slot;
+            }
+        }
+        for (int slot = 0; slot < NUMBER_FIELDS.length; slot++) {
+            if (!Double.isNaN(getNumber(NUMBER_FIELDS[slot]))) {
+                present |= 1 << (TEXT_FIELDS.length + slot);
+            }
+        }
+        if (extras != null) {
+            present |= EXTRAS_BIT;
+        }
+        fields.writeInt(present);
+        for (int slot = 0; slot < TEXT_FIELDS.length; slot++) {
+            if (text(slot) != null) {
+                BinaryRecords.writeString(fields, text(slot));
+            }
+        }
+        for (String field : NUMBER_FIELDS) {
+            double value = getNumber(field);
+            if (!Double.isNaN(value)) {
+                fields.writeDouble(value);
+            }
+        }
+        if (extras != null) {
+            BinaryRecords.writeString(fields, extras.toString());
+        }
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+    }
+
+    // Decodes the payload of one binary record, reading the buffer in place
+    public static WeatherRecord readBinary(byte[] buffer, int offset, int length) {
+        return readBinary(buffer, offset, length, textScratch(), numberScratch());
+    }
+
+    // Same, with caller-owned scratch arrays so a reader decoding many records allocates only the records
+    static WeatherRecord readBinary(byte[] buffer, int offset, int length, String[] text, double[] numbers) {
+        int end = offset + length;
+        int position = offset;
+        int present = readInt(buffer, position, end);
+        position += 4;
+        if (present >>> (EXTRAS_SHIFT + 1) != 0 || (present & 1) == 0) {
+            throw new IllegalArgumentException("Invalid field mask " + Integer.toHexString(present));
+        }
+        for (int slot = 0; slot < TEXT_FIELDS.length; slot++) {
+            text[slot] = null;
+            if ((present & (1 << slot)) != 0) {
+                int size = readShort(buffer, position, end);
+                position += 2;
+                checkBounds(position + size, end);
+                text[slot] = isInterned(slot) ? INTERNED.get(buffer, position, size)
+                        : new String(buffer, position, size, StandardCharsets.UTF_8);
+                position += size;
+            }
+        }
+        for (int slot = 0; slot < NUMBER_FIELDS.length; slot++) {
+            if ((present & (1 << (TEXT_FIELDS.length + slot))) != 0) {
+                long bits = ((long) readInt(buffer, position, end) << 32) | (readInt(buffer, position + 4, end) & 0xffffffffL);
+                numbers[slot] = Double.longBitsToDouble(bits);
+                position += 8;
+            } else {
+                numbers[slot] = Double.NaN;
+            }
+        }
+        JSONObject other = null;
+        if ((present & EXTRAS_BIT) != 0) {
+            int size = readShort(buffer, position, end);
+            position += 2;
+            checkBounds(position + size, end);
+            other = new JSONObject(new String(buffer, position, size, StandardCharsets.UTF_8));
+        }
+        return new WeatherRecord(text, numbers, other);
+    }
+
+    private static boolean isInterned(int textSlot) {
+        return textSlot == 2 || textSlot == 3 || textSlot == 6 || textSlot == 7;
+    }
+
+    private static int readInt(byte[] buffer, int position, int end) {
+        checkBounds(position + 4, end);
+        return ((buffer[position] & 0xff) << 24) | ((buffer[position + 1] & 0xff) << 16)
+                | ((buffer[position + 2] & 0xff) << 8) | (buffer[position + 3] & 0xff);
+    }
+
+    private static int readShort(byte[] buffer, int position, int end) {
+        checkBounds(position + 2, end);
+        return ((buffer[position] & 0xff) << 8) | (buffer[position + 1] & 0xff);
+    }
+
+    private static void checkBounds(int position, int end) {
+        if (position > end) {
+            throw new IllegalArgumentException("Record shorter than its fields");
+        }
+    }
+
+    // Interned strings looked up by their UTF-8 bytes, so decoding a state or wind direction that
+    // was seen before allocates nothing. Entries are immutable, so racing updates only cost a miss.
+    private static final class InternTable {
+        private final Entry[] entries = new Entry[1024];
+
+        String get(byte[] buffer, int offset, int length) {
+            int hash = 1;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (entries.length - 1);
+            Entry entry = entries[slot];
+            if (entry != null && Arrays.equals(entry.bytes, 0, entry.bytes.length, buffer, offset, offset + length)) {
+                return entry.value;
+            }
+            String value = new String(buffer, offset, length, StandardCharsets.UTF_8).intern();
+            entries[slot] = new Entry(Arrays.copyOfRange(buffer, offset, offset + length), value);
+            return value;
+        }
+
+        private static final class Entry {
+            final byte[] bytes;
+            final String value;
+
+            Entry(byte[] bytes, String value) {
+                this.bytes = bytes;
+                this.value = value;
+            }
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    // A numeric field by its JSON name, NaN when the record does not have it
+    public double getNumber(String field) {
+        switch (field) {
+            case "lat": return lat;
+            case "lon": return lon;
+            case "air_temp": return airTemp;
+            case "apparent_t": return apparentT;
+            case "dewpt": return dewpt;
+            case "press": return press;
+            case "rel_hum": return relHum;
+            case "wind_spd_kmh": return windSpdKmh;
+            case "wind_spd_kt": return windSpdKt;
+            default: return extras == null ? Double.NaN : extras.optDouble(field);
+        }
+    }
+
+    // A field by its JSON name as it would appear in the JSON form, or null when absent
+    public Object get(String field) {
+        int textSlot = textSlot(field);
+        if (textSlot >= 0) {
+            String value = text(textSlot);
+            if (value != null) {
+                return value;
+            }
+        } else if (numberSlot(field) >= 0) {
+            double value = getNumber(field);
+            if (!Double.isNaN(value)) {
+                return value;
+            }
+        }
+        return extras == null ? null : extras.opt(field);
+    }
+
+    private String text(int slot) {
+        switch (slot) {
+            case 0: return id;
+            case 1: return name;
+            case 2: return state;
+            case 3: return timeZone;
+            case 4: return localDateTime;
+            case 5: return localDateTimeFull;
+            case 6: return cloud;
+            default: return windDir;
+        }
+    }
+
+    // A fresh JSONObject, which callers may modify
+    public JSONObject toJSON() {
+        JSONObject json = extras == null ? new JSONObject() : new JSONObject(extras.toString());
+        for (int slot = 0; slot < 8; slot++) {
+            if (text(slot) != null) {
+                json.put(TEXT_FIELDS[slot], text(slot));
+            }
+        }
+        for (String field : NUMBER_FIELDS) {
+            double value = getNumber(field);
+            if (!Double.isNaN(value)) {
+                json.put(field, value);
+            }
+        }
+        return json;
+    }
+
+    // The JSON form, written straight from the fields without building a JSONObject
+    @Override
+    public String toString() {
+        StringBuilder json = new StringBuilder(256);
+        appendTo(json);
+        return json.toString();
+    }
+
+    public void appendTo(StringBuilder json) {
+        json.append('{');
+        int length = json.length();
+        appendText(json, "id", id);
+        appendText(json, "name", name);
+        appendText(json, "state", state);
+        appendText(json, "time_zone", timeZone);
+        appendNumber(json, "lat", lat);
+        appendNumber(json, "lon", lon);
+        appendText(json, "local_date_time", localDateTime);
+        appendText(json, "local_date_time_full", localDateTimeFull);
+        appendNumber(json, "air_temp", airTemp);
+        appendNumber(json, "apparent_t", apparentT);
+        appendText(json, "cloud", cloud);
+        appendNumber(json, "dewpt", dewpt);
+        appendNumber(json, "press", press);
+        appendNumber(json, "rel_hum", relHum);
+        appendText(json, "wind_dir", windDir);
+        appendNumber(json, "wind_spd_kmh", windSpdKmh);
+        appendNumber(json, "wind_spd_kt", windSpdKt);
+        if (extras != null) {
+            for (String key : extras.keySet()) {
+                json.append(',').append(JSONObject.quote(key)).append(':')
+                        .append(JSONObject.valueToString(extras.get(key)));
+            }
+        }
+        if (json.length() > length) {
+            json.deleteCharAt(length); // No comma before the first field
+        }
+        json.append('}');
+    }
+
+    private static void appendText(StringBuilder json, String key, String value) {
+        if (value != null) {
+            json.append(",\"").append(key).append("\":").append(JSONObject.quote(value));
+        }
+    }
+
+    private static void appendNumber(StringBuilder json, String key, double value) {
+        if (!Double.isNaN(value)) {
+            // Same formatting as org.json, so 60.0 is still written as 60
+            json.append(",\"").append(key).append("\":").append(JSONObject.numberToString(value));
+        }
+    }
+
+    // A JSON array of the records, in the given order
+    public static String toJSONString(List<WeatherRecord> records) {
+        StringBuilder json = new StringBuilder(records.size() * 256 + 2);
+        json.append('[');
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            records.get(i).appendTo(json);
+        }
+        return json.append(']').toString();
+    }
+}
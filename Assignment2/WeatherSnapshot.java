@@ -0,0 +1,96 @@
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Immutable copy of the aggregate served by GET /. It is built once per change of
+// the store and shared by every reader, so a GET only writes the cached bytes.
+public final class WeatherSnapshot {
+
+    private final long version;
+    private final long changeCount;
+    private final byte[] body;
+    private final String etag;
+    private final List<WeatherRecord> records;
+    // Compressed copies, built by the first reader that asks for them
+    private volatile byte[] gzipBody;
+    private volatile byte[] deflateBody;
+    private volatile byte[] binaryBody;
+
+    public WeatherSnapshot(long version, long changeCount, List<WeatherRecord> records) {
+        this.version = version;
+        this.changeCount = changeCount;
+        this.records = records;
+        this.body = WeatherRecord.toJSONString(records).getBytes(StandardCharsets.UTF_8);
+        this.etag = "\"" + contentHash(body) + "\"";
+    }
+
+    // Lamport time at which the snapshot was cut from the store
+    public long getVersion() {
+        return version;
+    }
+
+    // Number of store changes this snapshot includes
+    public long getChangeCount() {
+        return changeCount;
+    }
+
+    // The records in arrival order, shared by every reader
+    public List<WeatherRecord> getRecords() {
+        return records;
+    }
+
+    // Shared by every reader, callers must not modify it
+    public byte[] getBody() {
+        return body;
+    }
+
+    // The body in the given content coding, compressed at most once per snapshot
+    public byte[] getBody(String coding) {
+        if (Compression.GZIP.equals(coding)) {
+            byte[] compressed = gzipBody;
+            if (compressed == null) {
+                compressed = Compression.encode(body, coding);
+                gzipBody = compressed;
+            }
+            return compressed;
+        }
+        if (Compression.DEFLATE.equals(coding)) {
+            byte[] compressed = deflateBody;
+            if (compressed == null) {
+                compressed = Compression.encode(body, coding);
+                deflateBody = compressed;
+            }
+            return compressed;
+        }
+        return body;
+    }
+
+    // Taken from the body, so it stays valid across restarts and is the same on every node;
+    // a Lamport time starts over from 0 and would match a different aggregate
+    public String getETag() {
+        return etag;
+    }
+
+    // The records in the BinaryRecords encoding, built by the first reader that asks for it
+    public byte[] getBinaryBody() {
+        byte[] encoded = binaryBody;
+        if (encoded == null) {
+            encoded = BinaryRecords.encode(records);
+            binaryBody = encoded;
+        }
+        return encoded;
+    }
+
+    // A different representation of the same content needs its own entity tag
+    public String getBinaryETag() {
+        return etag.substring(0, etag.length() - 1) + "-bin\"";
+    }
+
+    // 64-bit FNV-1a of the bytes, in hex
+    static String contentHash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+}
@@ -0,0 +1,442 @@
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Append-only log of accepted PUTs plus periodic compacted snapshots, so the
+// aggregation server can rebuild its store after a restart.
+//
+// Writers append while applying their PUT and then wait outside of it until their entry
+// is durable. A single flusher thread writes everything appended so far with one
+// fsync, so concurrent PUTs share the cost of a sync (group commit).
+public class WriteAheadLog {
+
+    // An accepted PUT could not be made durable; once the flusher failed, every later wait fails too
+    public static class SyncException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public SyncException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private static final String SNAPSHOT_FILE = "snapshot.json";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long SNAPSHOT_INTERVAL = 30000;
+
+    private final Path directory;
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSequence;
+    private long durableSequence;
+    private long snapshotSequence;
+    private long replicatedSlot = -1; // Last slot of the replicated log whose entries precede this point
+    private final TreeMap<Long, PaxosLog.Vote> votes = new TreeMap<>(); // Acceptor votes for slots after it
+    private boolean rollRequested;
+    private IOException failure;
+    private FileChannel segment;
+    private Thread flusher;
+    private ScheduledExecutorService snapshotter;
+
+    // Write path and recovery statistics
+    private long syncCount;
+    private long syncedEntries;
+    private long syncNanos;
+    private long recoveryMillis;
+    private long recoveredEntries;
+
+    public WriteAheadLog(Path directory) {
+        this.directory = directory;
+    }
+
+    // Rebuilds the store from the latest snapshot and the log tail, then starts logging
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        snapshotSequence = loadSnapshot();
+        appendedSequence = snapshotSequence;
+        for (Path file : segments()) {
+            replaySegment(file);
+        }
+        durableSequence = appendedSequence;
+        recoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        // Never append to a recovered segment, its last line may be torn
+        segment = openSegment(appendedSequence + 1);
+
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "wal-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+            }
+        }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // Queues one accepted PUT and returns its sequence number. Must be called with the commit
+    // lock's read side held, in the same critical section that applies the PUT, so snapshots
+    // stay consistent.
+    public long append(Map<String, List<WeatherRecord>> batch, long clock) {
+        // Same JSON shape as a batched PUT body, written straight from the typed records
+        StringBuilder line = new StringBuilder("{\"clock\":").append(clock).append(",\"batch\":{");
+        for (Map.Entry<String, List<WeatherRecord>> entry : batch.entrySet()) {
+            if (line.charAt(line.length() - 1) != '{') {
+                line.append(',');
+            }
+            line.append(JSONObject.quote(entry.getKey())).append(":").append(WeatherRecord.toJSONString(entry.getValue()));
+        }
+        line.append('}');
+        synchronized (lock) {
+            long sequence = ++appendedSequence;
+            if (failure != null) {
+                return sequence; // Never written; awaitDurable reports the stored failure for it
+            }
+            pending.writeBytes(line.append(",\"seq\":").append(sequence).append("}\n").toString()
+                    .getBytes(StandardCharsets.UTF_8));
+            lock.notifyAll();
+            return sequence;
+        }
+    }
+
+    // Records that every entry of the replicated log's slot has been appended, so a restarted
+    // replica resumes after it instead of relearning the slots it already applied. Same locking
+    // as append(); returns the sequence number of the marker.
+    public long appendSlot(long slot) {
+        synchronized (lock) {
+            long sequence = ++appendedSequence;
+            replicatedSlot = slot;
+            votes.headMap(slot, true).clear();
+            if (failure != null) {
+                return sequence;
+            }
+            pending.writeBytes(("{\"slot\":" + slot + ",\"seq\":" + sequence + "}\n").getBytes(StandardCharsets.UTF_8));
+            lock.notifyAll();
+            return sequence;
+        }
+    }
+
+    // Records this replica's latest promise and accepted value for an open slot of the replicated
+    // log and returns the sequence number to await before answering with it. Needs no commit lock;
+    // the vote is dropped again once appendSlot() covers its slot.
+    public long appendVote(long slot, PaxosLog.Vote vote) {
+        String line = "{\"vote\":" + slot + ",\"promised\":" + vote.promised + ",\"ballot\":" + vote.acceptedBallot
+                + (vote.acceptedValue == null ? "" : ",\"value\":" + JSONObject.quote(vote.acceptedValue));
+        synchronized (lock) {
+            long sequence = ++appendedSequence;
+            if (slot > replicatedSlot) {
+                votes.put(slot, vote);
+            }
+            if (failure != null) {
+                return sequence;
+            }
+            pending.writeBytes((line + ",\"seq\":" + sequence + "}\n").getBytes(StandardCharsets.UTF_8));
+            lock.notifyAll();
+            return sequence;
+        }
+    }
+
+    // The acceptor votes recovered by open() for slots after getReplicatedSlot()
+    public Map<Long, PaxosLog.Vote> getRecoveredVotes() {
+        synchronized (lock) {
+            return new TreeMap<>(votes);
+        }
+    }
+
+    // The last replicated slot recovered by open(), or -1 when the log never saw one
+    public long getReplicatedSlot() {
+        synchronized (lock) {
+            return replicatedSlot;
+        }
+    }
+
+    // Blocks until the entry with the given sequence number has been fsynced
+    public void awaitDurable(long sequence) throws SyncException {
+        synchronized (lock) {
+            while (durableSequence < sequence && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SyncException("Interrupted while waiting for the log", e);
+                }
+            }
+            if (durableSequence < sequence) {
+                throw new SyncException("Writing the log failed: " + failure.getMessage(), failure);
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            long upTo;
+            boolean roll;
+            synchronized (lock) {
+                while (pending.size() == 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = pending.toByteArray();
+                pending = new ByteArrayOutputStream();
+                upTo = appendedSequence;
+                roll = rollRequested;
+                rollRequested = false;
+            }
+            try {
+                if (roll) {
+                    // Start a new segment so older ones can be deleted once a snapshot covers them
+                    segment.close();
+                    segment = openSegment(durableSequence + 1);
+                }
+                long start = System.nanoTime();
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    segment.write(buffer);
+                }
+                segment.force(false);
+                synchronized (lock) {
+                    syncNanos += System.nanoTime() - start;
+                    syncCount++;
+                    syncedEntries += upTo - durableSequence;
+                    durableSequence = upTo;
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    pending = new ByteArrayOutputStream(); // Nothing will ever write it
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    // Writes a compacted image of the store and deletes the log segments it covers
+    public void snapshot() throws IOException {
+        long sequence;
+        long slot;
+        List<Map.Entry<Long, PaxosLog.Vote>> openVotes;
+        long clock;
+        List<WeatherRecord> records = new ArrayList<>();
+        List<String> owners = new ArrayList<>();
+        // Exclusive against writers, so the cut contains exactly the first `sequence` log entries.
+        // Only references are copied here; writers wait for that, not for the serialization.
+        AggregationServer.commitLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                sequence = appendedSequence;
+                slot = replicatedSlot;
+                openVotes = new ArrayList<>(votes.entrySet());
+                rollRequested = true;
+            }
+            if (sequence == snapshotSequence) {
+                return; // Nothing was logged since the last snapshot
+            }
+            clock = AggregationServer.lamportClock.getTime();
+            AggregationServer.weatherData.forEach((record, contentServerId) -> {
+                records.add(record);
+                owners.add(contentServerId);
+            });
+        } finally {
+            AggregationServer.commitLock.writeLock().unlock();
+        }
+        // Stored records are replaced, never modified, so they can be serialized outside the lock
+        JSONObject image = new JSONObject();
+        image.put("seq", sequence);
+        image.put("clock", clock);
+        image.put("slot", slot);
+        JSONArray acceptorVotes = new JSONArray();
+        for (Map.Entry<Long, PaxosLog.Vote> vote : openVotes) {
+            acceptorVotes.put(new JSONObject().put("vote", vote.getKey()).put("promised", vote.getValue().promised)
+                    .put("ballot", vote.getValue().acceptedBallot).putOpt("value", vote.getValue().acceptedValue));
+        }
+        image.put("votes", acceptorVotes);
+        JSONArray stations = new JSONArray();
+        for (int i = 0; i < records.size(); i++) {
+            stations.put(new JSONObject().put("cs", owners.get(i)).put("record", records.get(i).toJSON()));
+        }
+        image.put("stations", stations);
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(image.toString().getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshotSequence = sequence;
+
+        // A segment is fully covered when the one after it starts at or before sequence + 1
+        List<Path> files = segments();
+        for (int i = 0; i + 1 < files.size(); i++) {
+            if (startOf(files.get(i + 1)) <= sequence + 1) {
+                Files.deleteIfExists(files.get(i));
+            }
+        }
+    }
+
+    private long loadSnapshot() throws IOException {
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        JSONObject image = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+        JSONArray stations = image.getJSONArray("stations");
+        for (int i = 0; i < stations.length(); i++) {
+            JSONObject station = stations.getJSONObject(i);
+            AggregationServer.restore(station.getJSONObject("record"), station.getString("cs"));
+        }
+        AggregationServer.lamportClock.updateTime(image.getLong("clock"));
+        replicatedSlot = image.optLong("slot", -1);
+        JSONArray recovered = image.optJSONArray("votes");
+        for (int i = 0; recovered != null && i < recovered.length(); i++) {
+            recoverVote(recovered.getJSONObject(i));
+        }
+        recoveredEntries += stations.length();
+        return image.getLong("seq");
+    }
+
+    private void replaySegment(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject entry;
+                try {
+                    entry = new JSONObject(line);
+                } catch (JSONException e) {
+                    // A crash mid-write leaves a torn last line; it was never acknowledged
+                    System.err.println("Ignoring torn log entry in " + file.getFileName());
+                    break;
+                }
+                long sequence = entry.getLong("seq");
+                if (sequence <= appendedSequence) {
+                    continue; // Already covered by the snapshot
+                }
+                if (entry.has("slot")) {
+                    replicatedSlot = entry.getLong("slot");
+                    votes.headMap(replicatedSlot, true).clear();
+                } else if (entry.has("vote")) {
+                    recoverVote(entry);
+                } else {
+                    AggregationServer.replay(batchOf(entry), entry.getLong("clock"));
+                    recoveredEntries++;
+                }
+                appendedSequence = sequence;
+            }
+        }
+    }
+
+    private void recoverVote(JSONObject entry) {
+        long slot = entry.getLong("vote");
+        if (slot > replicatedSlot) {
+            votes.put(slot, new PaxosLog.Vote(entry.getLong("promised"), entry.getLong("ballot"),
+                    entry.optString("value", null)));
+        }
+    }
+
+    private static Map<String, JSONArray> batchOf(JSONObject entry) {
+        Map<String, JSONArray> batch = new LinkedHashMap<>();
+        if (entry.has("batch")) {
+            JSONObject servers = entry.getJSONObject("batch");
+            for (String id : servers.keySet()) {
+                batch.put(id, servers.getJSONArray(id));
+            }
+        } else {
+            // Entries written before batched PUTs hold a single content server
+            batch.put(entry.getString("cs"), entry.getJSONArray("records"));
+        }
+        return batch;
+    }
+
+    private FileChannel openSegment(long firstSequence) throws IOException {
+        return FileChannel.open(directory.resolve(SEGMENT_PREFIX + firstSequence + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(directory)) {
+            stream.filter(p -> p.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                    && p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).forEach(files::add);
+        }
+        files.sort((a, b) -> Long.compare(startOf(a), startOf(b)));
+        return files;
+    }
+
+    private static long startOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    public long getRecoveredEntries() {
+        return recoveredEntries;
+    }
+
+    public long getSyncCount() {
+        synchronized (lock) {
+            return syncCount;
+        }
+    }
+
+    // Entries made durable so far, over all syncs
+    public long getSyncedEntries() {
+        synchronized (lock) {
+            return syncedEntries;
+        }
+    }
+
+    // Time spent writing and fsyncing so far
+    public long getSyncNanos() {
+        synchronized (lock) {
+            return syncNanos;
+        }
+    }
+
+    // Average number of PUTs covered by one fsync
+    public double getAverageGroupSize() {
+        synchronized (lock) {
+            return syncCount == 0 ? 0 : (double) syncedEntries / syncCount;
+        }
+    }
+
+    public double getAverageSyncMillis() {
+        synchronized (lock) {
+            return syncCount == 0 ? 0 : syncNanos / 1_000_000.0 / syncCount;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// PUT throughput and latency of a running aggregation server, e.g. a single node compared with
+// a Paxos-replicated one. Every connection pushes binary PUTs for its own content server over
+// one kept-alive socket, waiting for each response before sending the next.
+//
+// Usage: java WriteBenchmark <port> [puts per connection] [connections] [records per put]
+public class WriteBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int puts = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int recordsPerPut = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        long[][] latencies = new long[connections][];
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            int connection = c;
+            Thread thread = new Thread(() -> {
+                try {
+                    latencies[connection] = run(port, "bench" + connection, puts, recordsPerPut);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%d PUTs over %d connections in %.2f s: %.0f PUTs/s, %.0f records/s%n",
+                all.length, connections, seconds, all.length / seconds, all.length * recordsPerPut / seconds);
+        System.out.printf("latency ms  p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n",
+                percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), all[all.length - 1] / 1e6);
+    }
+
+    private static long[] run(int port, String contentServerId, int puts, int recordsPerPut) throws IOException {
+        List<WeatherRecord> records = new ArrayList<>();
+        for (int i = 0; i < recordsPerPut; i++) {
+            records.add(WeatherRecord.fromJSON(new JSONObject().put("id", contentServerId + "-" + i)
+                    .put("state", "SA").put("air_temp", 13.3).put("press", 1023.9)));
+        }
+        byte[] body = BinaryRecords.encode(Map.of(contentServerId, records));
+        byte[] head = ("PUT /weather.json HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: " + BinaryRecords.CONTENT_TYPE + "\r\n"
+                + "Content-Server-ID: " + contentServerId + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Lamport-Clock: 0\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n").getBytes(StandardCharsets.UTF_8);
+        long[] latencies = new long[puts];
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            for (int i = 0; i < puts; i++) {
+                long sent = System.nanoTime();
+                out.write(head);
+                out.write(body);
+                out.flush();
+                HttpResponse response = HttpResponse.read(in);
+                if (response == null || response.getStatusCode() != 200) {
+                    throw new IOException("PUT failed: " + (response == null ? "connection closed" : response.getStatusLine()));
+                }
+                latencies[i] = System.nanoTime() - sent;
+            }
+        }
+        return latencies;
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))] / 1e6;
+    }
+}
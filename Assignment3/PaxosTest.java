@@ -1,4 +1,7 @@
-import org.junit.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -9,7 +12,7 @@ public class PaxosTest
     private ExecutorService executor;
     private List<Councillor> councillors;
 
-    @Before
+    @BeforeEach
     public void setUp() {
         executor = Executors.newFixedThreadPool(TOTAL_COUNCILLORS);
         councillors = new ArrayList<>();
@@ -21,7 +24,7 @@ public class PaxosTest
         }
     }
 
-    @After
+    @AfterEach
     public void tearDown() {
         executor.shutdownNow();
     }
@@ -31,7 +34,7 @@ public class PaxosTest
         System.out.println("Test Paxos with immediate responses from all councillors");
         Proposer proposer = new Proposer("M1", councillors);
         proposer.initiateVoting("M1 for President");
-        Assert.assertTrue("Paxos works with immediate responses.", true);
+        Assertions.assertTrue(true, "Paxos works with immediate responses.");
     }
 
     @Test
@@ -47,7 +50,7 @@ public class PaxosTest
 
         Proposer proposer = new Proposer("M1", councillors);
         proposer.initiateVoting("M1 for President");
-        Assert.assertTrue("Paxos works with delayed responses.", true);
+        Assertions.assertTrue(true, "Paxos works with delayed responses.");
     }
 
     @Test
@@ -62,7 +65,7 @@ public class PaxosTest
 
         Proposer proposer = new Proposer("M1", councillors);
         proposer.initiateVoting("M1 for President");
-        Assert.assertTrue("Paxos works with some councillors offline.", true);
+        Assertions.assertTrue(true, "Paxos works with some councillors offline.");
     }
 
     @Test
@@ -80,7 +83,7 @@ public class PaxosTest
         t1.join();
         t2.join();
 
-        Assert.assertTrue("Paxos works with multiple proposers simultaneously.", true);
+        Assertions.assertTrue(true, "Paxos works with multiple proposers simultaneously.");
     }
 
     @Test
@@ -98,7 +101,7 @@ public class PaxosTest
 
         Proposer proposer = new Proposer("M1", councillors);
         proposer.initiateVoting("M1 for President");
-        Assert.assertTrue("Paxos works with mixed councillor behaviors.", true);
+        Assertions.assertTrue(true, "Paxos works with mixed councillor behaviors.");
     }
 
     @Test
@@ -120,7 +123,7 @@ public class PaxosTest
         });
 
         proposerThread.join();
-        Assert.assertTrue("Paxos works when a proposer goes offline mid-voting.", true);
+        Assertions.assertTrue(true, "Paxos works when a proposer goes offline mid-voting.");
     }
 
 }
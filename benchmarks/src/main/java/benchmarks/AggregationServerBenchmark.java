@@ -0,0 +1,94 @@
+package benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// GET /, GET /{id} and PUT handling of an in-process aggregation server holding the given number
+// of stations, without sockets, persistence or expiry, so only the store and its locking are measured.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationServerBenchmark {
+
+    private static final String SERVER = "AggregationServer";
+    private static final int STATIONS_PER_CONTENT_SERVER = 10;
+    private static final MethodHandle GET_DATA = DefaultPackage.method(SERVER, "getData");
+    private static final MethodHandle GET_BY_ID = DefaultPackage.method(SERVER, "getById", String.class);
+    private static final MethodHandle APPLY_PUT = DefaultPackage.method(SERVER, "applyPut", JSONArray.class, String.class, long.class);
+
+    @Param({"100", "1000", "10000"})
+    public int stations;
+
+    private String[] ids;
+    private int next;
+    private JSONArray update;
+
+    @Setup
+    public void setUp() throws Throwable {
+        // The same state AggregationServer.main creates, minus the optional parts
+        DefaultPackage.setStatic(SERVER, "lamportClock", DefaultPackage.construct("LamportClock"));
+        DefaultPackage.setStatic(SERVER, "weatherData", DefaultPackage.construct("StationStore"));
+        DefaultPackage.setStatic(SERVER, "contentServerValue", new ConcurrentHashMap<String, Long>());
+        DefaultPackage.setStatic(SERVER, "changeLog", DefaultPackage.construct("ChangeLog", new Class<?>[]{int.class}, 65536));
+        DefaultPackage.setStatic(SERVER, "expiryScheduler",
+                DefaultPackage.construct("ExpiryScheduler", new Class<?>[]{long.class}, 3000L));
+
+        ids = new String[stations];
+        for (int first = 0; first < stations; first += STATIONS_PER_CONTENT_SERVER) {
+            JSONArray records = new JSONArray();
+            for (int i = first; i < Math.min(stations, first + STATIONS_PER_CONTENT_SERVER); i++) {
+                ids[i] = "IDS" + (60901 + i);
+                records.put(record(ids[i], 13.3));
+            }
+            APPLY_PUT.invoke(records, "cs" + first / STATIONS_PER_CONTENT_SERVER, 0L);
+        }
+        update = new JSONArray();
+        for (int i = 0; i < STATIONS_PER_CONTENT_SERVER; i++) {
+            update.put(record(ids[i], 14.1));
+        }
+    }
+
+    private static JSONObject record(String id, double airTemp) {
+        return new JSONObject().put("id", id).put("name", "Adelaide (West Terrace /  ngayirdapira)").put("state", "SA")
+                .put("time_zone", "CST").put("lat", -34.9).put("lon", 138.6).put("local_date_time", "15/04:00pm")
+                .put("local_date_time_full", "20230715160000").put("air_temp", airTemp).put("apparent_t", 9.5)
+                .put("cloud", "Partly cloudy").put("dewpt", 5.7).put("press", 1023.9).put("rel_hum", 60)
+                .put("wind_dir", "S").put("wind_spd_kmh", 15).put("wind_spd_kt", 8);
+    }
+
+    @Benchmark
+    public Object getData() throws Throwable {
+        return GET_DATA.invoke();
+    }
+
+    @Benchmark
+    public Object getById() throws Throwable {
+        String id = ids[next];
+        next = next + 1 == ids.length ? 0 : next + 1;
+        return GET_BY_ID.invoke(id);
+    }
+
+    // A content server replacing its stations, through the same path a PUT takes into updateData
+    @Benchmark
+    public Object updateData() throws Throwable {
+        return APPLY_PUT.invoke(update, "cs0", 0L);
+    }
+}
@@ -0,0 +1,50 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+// Parsing one record of a content server's weather file into JSON
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentServerBenchmark {
+
+    private static final MethodHandle PARSE_WEATHER_DATA = DefaultPackage.method("ContentServer", "parseWeatherData", String.class);
+
+    // The first record of weather-sample-data.txt without local_date_time: the line parser rejects
+    // "15/04:00pm" for its second colon and prints a warning, which would be measured instead
+    private final String record = "id: IDS60901\n"
+            + "name: Adelaide (West Terrace /  ngayirdapira)\n"
+            + "state: SA\n"
+            + "time_zone: CST\n"
+            + "lat: -34.9\n"
+            + "lon: 138.6\n"
+            + "local_date_time_full: 20230715160000\n"
+            + "air_temp: 13.3\n"
+            + "apparent_t: 9.5\n"
+            + "cloud: Partly cloudy\n"
+            + "dewpt: 5.7\n"
+            + "press: 1023.9\n"
+            + "rel_hum: 60\n"
+            + "wind_dir: S\n"
+            + "wind_spd_kmh: 15\n"
+            + "wind_spd_kt: 8\n";
+
+    @Benchmark
+    public Object parseWeatherData() throws Throwable {
+        return PARSE_WEATHER_DATA.invoke(record);
+    }
+}
@@ -0,0 +1,70 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+// The assignments keep every class in the default package, which a named package cannot import,
+// and JMH rejects benchmarks in the default package. The benchmarks therefore reach the code under
+// test through method handles; held in static final fields they are constants the JIT inlines like
+// direct calls, so they add nothing measurable to the benchmarked path.
+final class DefaultPackage {
+
+    private DefaultPackage() {
+    }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Not on the benchmark class path: " + className, e);
+        }
+    }
+
+    // A static or instance method of any visibility; instance methods take the receiver first
+    static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(className + "." + name + " changed", e);
+        }
+    }
+
+    static Object construct(String className, Class<?>[] parameterTypes, Object... arguments) {
+        try {
+            Constructor<?> constructor = type(className).getDeclaredConstructor(parameterTypes);
+            constructor.setAccessible(true);
+            return constructor.newInstance(arguments);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + className, e);
+        }
+    }
+
+    static Object construct(String className) {
+        return construct(className, new Class<?>[0]);
+    }
+
+    static void setStatic(String className, String name, Object value) {
+        try {
+            Field field = type(className).getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(null, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(className + "." + name + " changed", e);
+        }
+    }
+
+    static Object get(Object target, String name) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(target.getClass().getName() + "." + name + " changed", e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+// One Lamport clock shared by every benchmark thread, the way all handler threads of a server share theirs
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LamportClockBenchmark {
+
+    private static final MethodHandle GET_TIME = DefaultPackage.method("LamportClock", "getTime");
+    private static final MethodHandle INCREASE_TIME = DefaultPackage.method("LamportClock", "increaseTime");
+    private static final MethodHandle UPDATE_TIME = DefaultPackage.method("LamportClock", "updateTime", long.class);
+
+    @Param({"LamportClock", "HybridLogicalClock"})
+    public String implementation;
+
+    private Object clock;
+
+    @Setup
+    public void setUp() {
+        clock = DefaultPackage.construct(implementation);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void increaseTimeUncontended() throws Throwable {
+        INCREASE_TIME.invoke(clock);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void increaseTime() throws Throwable {
+        INCREASE_TIME.invoke(clock);
+    }
+
+    // Merging a received time that is usually behind the local clock, as most messages are
+    @Benchmark
+    @Threads(4)
+    public void updateTime() throws Throwable {
+        UPDATE_TIME.invoke(clock, 1L);
+    }
+
+    // Handler threads stamping responses while others tick for incoming PUTs
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public long mixedGetTime() throws Throwable {
+        return (long) GET_TIME.invoke(clock);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedIncreaseTime() throws Throwable {
+        INCREASE_TIME.invoke(clock);
+    }
+}
@@ -0,0 +1,91 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A full Prepare, Accept and Decide round of Proposer.initiateVoting against nine local councillors.
+// Councillors simulate their latency by name: "responsive" names every one M1, the member that
+// always answers at once, so the round measures the protocol and its sockets; "simulated" uses
+// M1 to M9 with their delays and outages, and takes seconds per round (run with -p behaviour=simulated).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PaxosBenchmark {
+
+    private static final int COUNCILLORS = 9;
+    private static final int FIRST_PORT = 6101;
+    private static final MethodHandle START = DefaultPackage.method("Councillor", "start");
+    private static final MethodHandle INITIATE_VOTING = DefaultPackage.method("Proposer", "initiateVoting", String.class);
+
+    @Param({"responsive"})
+    public String behaviour;
+
+    private final List<Object> councillors = new ArrayList<>();
+    private Object proposer;
+    private PrintStream console;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        // Every round prints a dozen progress lines, which would flood the benchmark output
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        for (int i = 1; i <= COUNCILLORS; i++) {
+            String name = behaviour.equals("simulated") ? "M" + i : "M1";
+            Object councillor = DefaultPackage.construct("Councillor", new Class<?>[]{String.class, int.class},
+                    name, FIRST_PORT + i);
+            councillors.add(councillor);
+            Thread thread = new Thread(() -> {
+                try {
+                    START.invoke(councillor);
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            }, "councillor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        for (Object councillor : councillors) {
+            while (DefaultPackage.get(councillor, "serverSocket") == null) {
+                Thread.sleep(10);
+            }
+        }
+        proposer = DefaultPackage.construct("Proposer", new Class<?>[]{String.class, List.class}, "M1", councillors);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        // Councillors have no way to stop; closing the listener ends their accept loop
+        for (Object councillor : councillors) {
+            ((ServerSocket) DefaultPackage.get(councillor, "serverSocket")).close();
+        }
+        councillors.clear();
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void initiateVoting() throws Throwable {
+        INITIATE_VOTING.invoke(proposer, "M1 for President");
+    }
+}